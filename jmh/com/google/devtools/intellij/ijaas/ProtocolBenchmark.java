@@ -0,0 +1,233 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.intellij.ijaas.RequestReader.GenericRequest;
+import com.google.devtools.intellij.ijaas.handlers.BenchmarkData;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonStreamParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The wire protocol without a socket. The streams are in memory, so the numbers are the CPU and
+// allocation cost of the framing, parsing and encoding. The *Framed* benchmarks are the CBOR
+// framed transport, and the *AsTree benchmarks are the previous JsonElement based path for
+// comparison.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+  // The requests in one read of the stream.
+  private static final int REQUEST_COUNT = 100;
+
+  // 0 is a java_complete for an opened document. Otherwise the request has the whole text.
+  @Param({"0", "20000"})
+  public int textLength;
+
+  @Param({"2000"})
+  public int completionCount;
+
+  @Param({"500"})
+  public int problemCount;
+
+  private final Codec codec = new Codec();
+  private final Gson gson = new Gson();
+  private byte[] requests;
+  private byte[] framedRequests;
+  private JavaCompleteHandler.Response completionResponse;
+  private JavaSrcUpdateHandler.Response problemResponse;
+  private JsonWriter writer;
+  private Connection connection;
+  private Connection framedConnection;
+
+  @Setup
+  public void setUp() throws IOException {
+    codec.register(JavaCompleteHandler.Request.class);
+    codec.register(JavaCompleteHandler.Response.class);
+    codec.register(JavaSrcUpdateHandler.Response.class);
+    requests = completeRequests();
+    framedRequests = toFrames(requests);
+    completionResponse = BenchmarkData.completionResponse(completionCount);
+    problemResponse = BenchmarkData.problemResponse(problemCount);
+    // Encode to UTF-8 as the socket does, and throw the bytes away.
+    writer =
+        codec.newJsonWriter(
+            new OutputStreamWriter(
+                new BufferedOutputStream(ByteStreams.nullOutputStream()),
+                StandardCharsets.UTF_8));
+    connection =
+        new Connection(
+            codec,
+            MessageWriter.json(
+                codec,
+                new OutputStreamWriter(
+                    new BufferedOutputStream(ByteStreams.nullOutputStream()),
+                    StandardCharsets.UTF_8)));
+    framedConnection =
+        new Connection(
+            codec,
+            MessageWriter.framed(new BufferedOutputStream(ByteStreams.nullOutputStream())));
+  }
+
+  @Benchmark
+  public void readRequests(Blackhole blackhole) throws IOException {
+    RequestReader reader =
+        RequestReader.json(
+            codec,
+            new InputStreamReader(
+                new BufferedInputStream(new ByteArrayInputStream(requests)),
+                StandardCharsets.UTF_8),
+            method -> JavaCompleteHandler.Request.class);
+    while (reader.hasNext()) {
+      GenericRequest request = reader.next();
+      blackhole.consume(request.params);
+    }
+  }
+
+  @Benchmark
+  public void readFramedRequests(Blackhole blackhole) throws IOException {
+    RequestReader reader =
+        RequestReader.framed(
+            codec,
+            new BufferedInputStream(new ByteArrayInputStream(framedRequests)),
+            method -> JavaCompleteHandler.Request.class);
+    while (reader.hasNext()) {
+      GenericRequest request = reader.next();
+      blackhole.consume(request.params);
+    }
+  }
+
+  @Benchmark
+  public void readRequestsAsTree(Blackhole blackhole) {
+    JsonStreamParser parser =
+        new JsonStreamParser(
+            new InputStreamReader(
+                new BufferedInputStream(new ByteArrayInputStream(requests)),
+                StandardCharsets.UTF_8));
+    while (parser.hasNext()) {
+      JsonArray request = parser.next().getAsJsonArray();
+      JsonElement params = request.get(1).getAsJsonObject().get("params");
+      blackhole.consume(gson.fromJson(params, JavaCompleteHandler.Request.class));
+    }
+  }
+
+  @Benchmark
+  public void writeCompletions() {
+    connection.writeResult(1, JavaCompleteHandler.Response.class, completionResponse);
+  }
+
+  @Benchmark
+  public void writeFramedCompletions() {
+    framedConnection.writeResult(1, JavaCompleteHandler.Response.class, completionResponse);
+  }
+
+  @Benchmark
+  public void writeCompletionsAsTree() throws IOException {
+    writeAsTree(gson.toJsonTree(completionResponse));
+  }
+
+  @Benchmark
+  public void writeProblems() {
+    connection.writeResult(1, JavaSrcUpdateHandler.Response.class, problemResponse);
+  }
+
+  @Benchmark
+  public void writeFramedProblems() {
+    framedConnection.writeResult(1, JavaSrcUpdateHandler.Response.class, problemResponse);
+  }
+
+  @Benchmark
+  public void writeProblemsAsTree() throws IOException {
+    writeAsTree(gson.toJsonTree(problemResponse));
+  }
+
+  private void writeAsTree(JsonElement result) throws IOException {
+    JsonObject response = new JsonObject();
+    response.add("result", result);
+    JsonArray message = new JsonArray();
+    message.add(1);
+    // The envelope was built with toJsonTree too, which copied the result tree once more.
+    message.add(gson.toJsonTree(response));
+    gson.toJson(message, writer);
+    writer.flush();
+  }
+
+  // Re-encodes the JSON requests as frames. The server reads the preface before the frames.
+  private byte[] toFrames(byte[] jsonRequests) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataOutputStream frames = new DataOutputStream(out);
+    JsonStreamParser parser =
+        new JsonStreamParser(
+            new InputStreamReader(new ByteArrayInputStream(jsonRequests), StandardCharsets.UTF_8));
+    while (parser.hasNext()) {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      codec.write(new CborWriter(payload), JsonElement.class, parser.next());
+      Framing.writeFrame(frames, payload);
+    }
+    return out.toByteArray();
+  }
+
+  private byte[] completeRequests() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < textLength; i++) {
+      text.append("  private final String field").append(i).append(" = \"value\";\n");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 1; i <= REQUEST_COUNT; i++) {
+      JsonObject params = new JsonObject();
+      params.addProperty("file", "/home/user/src/project/src/main/java/com/example/Example.java");
+      if (textLength > 0) {
+        params.addProperty("text", text.toString());
+      } else {
+        params.addProperty("version", i);
+      }
+      params.addProperty("offset", 1234);
+      params.addProperty("prefix", "get");
+      params.addProperty("limit", 100);
+      JsonObject request = new JsonObject();
+      request.addProperty("method", "java_complete");
+      request.add("params", params);
+      JsonArray message = new JsonArray();
+      message.add(i);
+      message.add(request);
+      byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+}
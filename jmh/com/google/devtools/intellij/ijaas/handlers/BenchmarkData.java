@@ -0,0 +1,97 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.Completion;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Results that look like the ones for a large Java file. The same seed gives the same data, so
+// that the runs are comparable.
+public class BenchmarkData {
+  private static final String[] VERBS = {
+    "get", "set", "is", "to", "create", "find", "add", "remove"
+  };
+  private static final String[] NOUNS = {
+    "Name", "Value", "Item", "Index", "Size", "Text", "Type", "Element", "Project", "Document"
+  };
+  private static final String[] KINDS = {
+    Completion.VARIABLE,
+    Completion.FUNCTION,
+    Completion.FUNCTION,
+    Completion.TYPE,
+    Completion.KEYWORD
+  };
+  private static final String[] PROBLEM_TYPES = {Problem.ERROR, Problem.WARNING, Problem.INFO};
+
+  private BenchmarkData() {}
+
+  public static ArrayList<Completion> completions(int size) {
+    Random random = new Random(0);
+    ArrayList<Completion> completions = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Completion completion = new Completion();
+      completion.rank = i;
+      completion.kind = KINDS[random.nextInt(KINDS.length)];
+      String noun = NOUNS[random.nextInt(NOUNS.length)];
+      switch (completion.kind) {
+        case Completion.KEYWORD:
+          completion.word = VERBS[random.nextInt(VERBS.length)];
+          completion.menu = "";
+          break;
+        case Completion.TYPE:
+          completion.word = noun + i;
+          completion.menu = "com.example." + noun.toLowerCase() + "." + noun + i;
+          break;
+        case Completion.FUNCTION:
+          completion.word = VERBS[random.nextInt(VERBS.length)] + noun + i + "(";
+          completion.menu = "(int index, String " + noun.toLowerCase() + ") : " + noun;
+          break;
+        default:
+          completion.word = noun.toLowerCase() + i;
+          completion.menu = noun;
+      }
+      completions.add(completion);
+    }
+    return completions;
+  }
+
+  public static List<Problem> problems(int size) {
+    Random random = new Random(0);
+    List<Problem> problems = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Problem problem = new Problem();
+      problem.lnum = random.nextInt(5000) + 1;
+      problem.type = PROBLEM_TYPES[random.nextInt(PROBLEM_TYPES.length)];
+      problem.text =
+          "Variable '" + NOUNS[random.nextInt(NOUNS.length)].toLowerCase() + i + "' is never used";
+      problems.add(problem);
+    }
+    return problems;
+  }
+
+  public static JavaCompleteHandler.Response completionResponse(int size) {
+    JavaCompleteHandler.Response response = new JavaCompleteHandler.Response();
+    response.completions = completions(size);
+    return response;
+  }
+
+  public static JavaSrcUpdateHandler.Response problemResponse(int size) {
+    JavaSrcUpdateHandler.Response response = new JavaSrcUpdateHandler.Response();
+    response.problems = problems(size);
+    return response;
+  }
+}
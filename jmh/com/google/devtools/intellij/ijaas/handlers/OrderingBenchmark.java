@@ -0,0 +1,88 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.Completion;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.CompletionOrdering;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.RelevanceOrdering;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.ProblemOrdering;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OrderingBenchmark {
+  @Param({"2000"})
+  public int completionCount;
+
+  @Param({"500"})
+  public int problemCount;
+
+  // The limit of java_complete.
+  @Param({"50"})
+  public int limit;
+
+  private List<Completion> completions;
+  private List<Problem> problems;
+  // Every tenth word has been accepted a few times.
+  private Map<String, Integer> usage;
+
+  @Setup
+  public void setUp() {
+    completions = BenchmarkData.completions(completionCount);
+    problems = BenchmarkData.problems(problemCount);
+    usage = new HashMap<>();
+    for (int i = 0; i < completions.size(); i += 10) {
+      usage.put(completions.get(i).word, i % 7 + 1);
+    }
+  }
+
+  @Benchmark
+  public List<Completion> sortCompletions() {
+    // Sort a copy, as sorting the sorted list again would measure the best case.
+    List<Completion> sorted = new ArrayList<>(completions);
+    sorted.sort(new CompletionOrdering());
+    return sorted;
+  }
+
+  @Benchmark
+  public List<Completion> topCompletions() {
+    return new CompletionOrdering().leastOf(completions, limit);
+  }
+
+  @Benchmark
+  public List<Completion> topCompletionsByRelevance() {
+    return new RelevanceOrdering(usage).leastOf(completions, limit);
+  }
+
+  @Benchmark
+  public List<Problem> sortProblems() {
+    List<Problem> sorted = new ArrayList<>(problems);
+    sorted.sort(new ProblemOrdering());
+    return sorted;
+  }
+}
@@ -14,28 +14,48 @@
 package com.google.devtools.intellij.ijaas;
 
 import com.google.common.util.concurrent.SettableFuture;
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.progress.PerformInBackgroundOption;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
-public abstract class BaseHandler<ReqT, ResT> implements IjaasHandler {
-  protected abstract Class<ReqT> requestClass();
-
+public abstract class BaseHandler<ReqT, ResT> implements IjaasHandler<ReqT, ResT> {
   protected void validate(ReqT request) {}
 
-  protected abstract ResT handle(ReqT request);
+  protected abstract ResT handle(ReqT request, RequestContext context);
+
+  // How long to wait for handle before giving up the request.
+  protected long getTimeoutMillis() {
+    return 10_000;
+  }
 
   @Override
-  public JsonElement handle(JsonElement params) {
-    SettableFuture<JsonElement> ret = SettableFuture.create();
+  public ResT handleRequest(@Nullable ReqT request, RequestContext context) {
+    SettableFuture<ResT> ret = SettableFuture.create();
     AtomicReference<ProgressIndicator> indicatorRef = new AtomicReference<>();
+    // Return right away when cancelled. The task stops at its next cancellation check.
+    context.onCancel(
+        () -> {
+          ProgressIndicator indicator = indicatorRef.get();
+          if (indicator != null) {
+            indicator.cancel();
+          }
+          try {
+            context.checkCancelled();
+          } catch (RequestCancelledException e) {
+            ret.setException(e);
+          }
+        });
     ProgressManager.getInstance()
         .run(
             new Task.Backgroundable(
@@ -43,22 +63,37 @@ public abstract class BaseHandler<ReqT, ResT> implements IjaasHandler {
               @Override
               public void run(ProgressIndicator indicator) {
                 indicatorRef.set(indicator);
-                Gson gson = new Gson();
-                ReqT request = gson.fromJson(params, requestClass());
+                if (context.isCancelled()) {
+                  return;
+                }
                 try {
                   validate(request);
                 } catch (Exception e) {
                   ret.setException(new RuntimeException("Validation error", e));
+                  return;
+                }
+                try {
+                  ret.set(handle(request, context));
+                } catch (ProcessCanceledException e) {
+                  ret.setException(e);
+                  throw e;
+                } catch (RuntimeException e) {
+                  ret.setException(e);
                 }
-                ret.set(gson.toJsonTree(handle(request)));
               }
             });
     try {
-      return ret.get(10, TimeUnit.SECONDS);
+      return ret.get(getTimeoutMillis(), TimeUnit.MILLISECONDS);
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new RuntimeException(e);
-    } catch (TimeoutException | ExecutionException e) {
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RequestCancelledException) {
+        throw (RequestCancelledException) e.getCause();
+      }
+      throw new RuntimeException(e);
+    } catch (TimeoutException e) {
+      context.getStats().getTimeouts().incrementAndGet();
       ProgressIndicator indicator = indicatorRef.get();
       if (indicator != null) {
         indicator.cancel();
@@ -66,4 +101,44 @@ public abstract class BaseHandler<ReqT, ResT> implements IjaasHandler {
       throw new RuntimeException(e);
     }
   }
+
+  // Application#invokeAndWait that records the time blocked in it.
+  protected static void invokeAndWait(RequestContext context, Runnable runnable) {
+    long startNanos = System.nanoTime();
+    try {
+      ApplicationManager.getApplication().invokeAndWait(runnable);
+    } finally {
+      context.getStats().getEdtWait().recordNanos(System.nanoTime() - startNanos);
+    }
+  }
+
+  // Application#runReadAction that records the time spent in it.
+  protected static void runReadAction(RequestContext context, Runnable runnable) {
+    long startNanos = System.nanoTime();
+    try {
+      ApplicationManager.getApplication().runReadAction(runnable);
+    } finally {
+      context.getStats().getReadAction().recordNanos(System.nanoTime() - startNanos);
+    }
+  }
+
+  // A read action that gives way to the write actions, for the long computations. It is cancelled
+  // when a write action is about to start, and restarted after it, so the computation must not
+  // have side effects other than its result. It is also cancelled with the request.
+  protected static <T> T computeInNonBlockingReadAction(
+      RequestContext context, Callable<T> computation) {
+    AtomicInteger attempts = new AtomicInteger();
+    long startNanos = System.nanoTime();
+    try {
+      return ReadAction.nonBlocking(
+              () -> {
+                attempts.incrementAndGet();
+                return computation.call();
+              })
+          .executeSynchronously();
+    } finally {
+      context.getStats().getReadAction().recordNanos(System.nanoTime() - startNanos);
+      context.recordNonBlockingReadAction(Math.max(0, attempts.get() - 1));
+    }
+  }
 }
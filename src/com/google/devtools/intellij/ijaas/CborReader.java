@@ -0,0 +1,440 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// A JsonReader that reads a CBOR (RFC 8949) message from a frame, so that the type adapters of the
+// handlers bind the requests of the framed transport as they do the JSON ones. Only the data model
+// of JSON is supported: the integers that fit in a long, the floats, the text strings, the arrays,
+// the maps with text keys, true, false and null. The tags are ignored. Gson binds Map-typed fields
+// through the internals of JsonReader, so the request classes should not have them.
+class CborReader extends JsonReader {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int MAJOR_SIMPLE = 7;
+  private static final int INDEFINITE = 31;
+  private static final int BREAK = 0xff;
+
+  private final byte[] data;
+  private int pos;
+  private final ArrayDeque<Container> containers = new ArrayDeque<>();
+
+  CborReader(byte[] data) {
+    super(UnusedReader.INSTANCE);
+    this.data = data;
+  }
+
+  @Override
+  public JsonToken peek() throws IOException {
+    Container container = containers.peek();
+    if (container == null) {
+      skipTags();
+      if (pos == data.length) {
+        return JsonToken.END_DOCUMENT;
+      }
+    } else {
+      if (container.remaining == 0 || (container.remaining < 0 && current() == BREAK)) {
+        return container.map ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+      }
+      if (container.map && container.read % 2 == 0) {
+        return JsonToken.NAME;
+      }
+      skipTags();
+    }
+    int initial = current();
+    switch (initial >>> 5) {
+      case MAJOR_UNSIGNED:
+      case MAJOR_NEGATIVE:
+        return JsonToken.NUMBER;
+      case MAJOR_TEXT:
+        return JsonToken.STRING;
+      case MAJOR_ARRAY:
+        return JsonToken.BEGIN_ARRAY;
+      case MAJOR_MAP:
+        return JsonToken.BEGIN_OBJECT;
+      case MAJOR_SIMPLE:
+        switch (initial & 0x1f) {
+          case 20:
+          case 21:
+            return JsonToken.BOOLEAN;
+          case 22:
+          case 23:
+            return JsonToken.NULL;
+          case 25:
+          case 26:
+          case 27:
+            return JsonToken.NUMBER;
+          default:
+            break;
+        }
+        break;
+      default:
+        break;
+    }
+    throw syntaxError("Unsupported CBOR item 0x" + Integer.toHexString(initial));
+  }
+
+  @Override
+  public void beginArray() throws IOException {
+    expect(JsonToken.BEGIN_ARRAY);
+    containers.push(new Container(false, readLength()));
+  }
+
+  @Override
+  public void endArray() throws IOException {
+    expect(JsonToken.END_ARRAY);
+    endContainer();
+  }
+
+  @Override
+  public void beginObject() throws IOException {
+    expect(JsonToken.BEGIN_OBJECT);
+    long pairs = readLength();
+    containers.push(new Container(true, pairs < 0 ? -1 : pairs * 2));
+  }
+
+  @Override
+  public void endObject() throws IOException {
+    expect(JsonToken.END_OBJECT);
+    endContainer();
+  }
+
+  @Override
+  public boolean hasNext() throws IOException {
+    JsonToken token = peek();
+    return token != JsonToken.END_ARRAY
+        && token != JsonToken.END_OBJECT
+        && token != JsonToken.END_DOCUMENT;
+  }
+
+  @Override
+  public String nextName() throws IOException {
+    expect(JsonToken.NAME);
+    skipTags();
+    String name = readText();
+    itemRead();
+    return name;
+  }
+
+  @Override
+  public String nextString() throws IOException {
+    JsonToken token = peek();
+    String value;
+    if (token == JsonToken.STRING) {
+      value = readText();
+    } else if (token == JsonToken.NUMBER) {
+      Number number = readNumber();
+      value = number.toString();
+    } else {
+      throw unexpected("Expected a string but was " + token);
+    }
+    itemRead();
+    return value;
+  }
+
+  @Override
+  public boolean nextBoolean() throws IOException {
+    expect(JsonToken.BOOLEAN);
+    boolean value = data[pos++] == (byte) 0xf5;
+    itemRead();
+    return value;
+  }
+
+  @Override
+  public void nextNull() throws IOException {
+    expect(JsonToken.NULL);
+    pos++;
+    itemRead();
+  }
+
+  @Override
+  public double nextDouble() throws IOException {
+    JsonToken token = peek();
+    double value;
+    if (token == JsonToken.NUMBER) {
+      value = readNumber().doubleValue();
+    } else if (token == JsonToken.STRING) {
+      value = Double.parseDouble(readText());
+    } else {
+      throw unexpected("Expected a double but was " + token);
+    }
+    if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw syntaxError("JSON forbids NaN and infinities: " + value);
+    }
+    itemRead();
+    return value;
+  }
+
+  @Override
+  public long nextLong() throws IOException {
+    JsonToken token = peek();
+    long value;
+    if (token == JsonToken.NUMBER) {
+      Number number = readNumber();
+      if (number instanceof Long) {
+        value = number.longValue();
+      } else {
+        double doubleValue = number.doubleValue();
+        value = (long) doubleValue;
+        if (value != doubleValue) {
+          throw new NumberFormatException("Expected a long but was " + doubleValue);
+        }
+      }
+    } else if (token == JsonToken.STRING) {
+      value = Long.parseLong(readText());
+    } else {
+      throw unexpected("Expected a long but was " + token);
+    }
+    itemRead();
+    return value;
+  }
+
+  @Override
+  public int nextInt() throws IOException {
+    long value = nextLong();
+    if (value != (int) value) {
+      throw new NumberFormatException("Expected an int but was " + value);
+    }
+    return (int) value;
+  }
+
+  @Override
+  public void skipValue() throws IOException {
+    switch (peek()) {
+      case NAME:
+        nextName();
+        break;
+      case BEGIN_ARRAY:
+        beginArray();
+        while (hasNext()) {
+          skipValue();
+        }
+        endArray();
+        break;
+      case BEGIN_OBJECT:
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        break;
+      case STRING:
+      case NUMBER:
+        nextString();
+        break;
+      case BOOLEAN:
+        nextBoolean();
+        break;
+      case NULL:
+        nextNull();
+        break;
+      default:
+        throw syntaxError("Expected a value but was " + peek());
+    }
+  }
+
+  @Override
+  public void close() {}
+
+  // The number of the arrays and the maps that have begun and not ended.
+  int getDepth() {
+    return containers.size();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " at offset " + pos;
+  }
+
+  private void expect(JsonToken expected) throws IOException {
+    JsonToken token = peek();
+    if (token != expected) {
+      throw unexpected("Expected " + expected + " but was " + token);
+    }
+  }
+
+  private void endContainer() {
+    Container container = containers.pop();
+    if (container.remaining < 0) {
+      // The break.
+      pos++;
+    }
+    itemRead();
+  }
+
+  // Called after an item of the current container, a name or a value, is read.
+  private void itemRead() {
+    Container container = containers.peek();
+    if (container != null) {
+      container.read++;
+      if (container.remaining > 0) {
+        container.remaining--;
+      }
+    }
+  }
+
+  private void skipTags() throws IOException {
+    while (pos < data.length && current() >>> 5 == MAJOR_TAG) {
+      readHead();
+    }
+  }
+
+  private int current() throws IOException {
+    if (pos >= data.length) {
+      throw syntaxError("Unexpected end of the frame");
+    }
+    return data[pos] & 0xff;
+  }
+
+  // Returns the length of an array or a map, or -1 if it is indefinite.
+  private long readLength() throws IOException {
+    if ((current() & 0x1f) == INDEFINITE) {
+      pos++;
+      return -1;
+    }
+    long length = readHead();
+    // Every item takes at least a byte.
+    if (length < 0 || length > data.length - pos) {
+      throw syntaxError("Unexpected end of the frame");
+    }
+    return length;
+  }
+
+  private String readText() throws IOException {
+    if (current() >>> 5 != MAJOR_TEXT || (current() & 0x1f) == INDEFINITE) {
+      throw syntaxError("Expected a definite-length text string");
+    }
+    long length = readHead();
+    if (length < 0 || length > data.length - pos) {
+      throw syntaxError("Unexpected end of the frame");
+    }
+    String text = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+    pos += (int) length;
+    return text;
+  }
+
+  private Number readNumber() throws IOException {
+    int initial = current();
+    switch (initial) {
+      case 0xf9:
+        pos++;
+        return halfToFloat((int) readBigEndian(2));
+      case 0xfa:
+        pos++;
+        return Float.intBitsToFloat((int) readBigEndian(4));
+      case 0xfb:
+        pos++;
+        return Double.longBitsToDouble(readBigEndian(8));
+      default:
+        break;
+    }
+    long value = readHead();
+    if (value < 0) {
+      throw new NumberFormatException("Out of the range of long: " + Long.toUnsignedString(value));
+    }
+    return initial >>> 5 == MAJOR_NEGATIVE ? -1 - value : value;
+  }
+
+  // Reads the initial byte and the argument that follows it. The argument is unsigned.
+  private long readHead() throws IOException {
+    int additional = current() & 0x1f;
+    pos++;
+    if (additional < 24) {
+      return additional;
+    }
+    switch (additional) {
+      case 24:
+        return readBigEndian(1);
+      case 25:
+        return readBigEndian(2);
+      case 26:
+        return readBigEndian(4);
+      case 27:
+        return readBigEndian(8);
+      default:
+        throw syntaxError("Unsupported additional information " + additional);
+    }
+  }
+
+  private long readBigEndian(int bytes) throws IOException {
+    if (bytes > data.length - pos) {
+      throw syntaxError("Unexpected end of the frame");
+    }
+    long value = 0;
+    for (int i = 0; i < bytes; i++) {
+      value = value << 8 | (data[pos++] & 0xff);
+    }
+    return value;
+  }
+
+  private static float halfToFloat(int half) {
+    int exponent = (half >>> 10) & 0x1f;
+    int mantissa = half & 0x3ff;
+    float value;
+    if (exponent == 0) {
+      value = mantissa * 0x1p-24f;
+    } else if (exponent == 0x1f) {
+      value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+    } else {
+      value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+    }
+    return (half & 0x8000) != 0 ? -value : value;
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException(message + " at offset " + pos);
+  }
+
+  // A well-formed item of another type. JsonReader throws IllegalStateException for it too, so
+  // that the type adapters report it as a JsonSyntaxException.
+  private IllegalStateException unexpected(String message) {
+    return new IllegalStateException(message + " at offset " + pos);
+  }
+
+  private static class Container {
+    private final boolean map;
+    // The items left, counting the names and the values of a map, or -1 if indefinite.
+    private long remaining;
+    private long read;
+
+    Container(boolean map, long remaining) {
+      this.map = map;
+      this.remaining = remaining;
+    }
+  }
+
+  // JsonReader requires a Reader, but all the reads come from the frame.
+  private static class UnusedReader extends Reader {
+    static final UnusedReader INSTANCE = new UnusedReader();
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,252 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+// A JsonWriter that writes CBOR (RFC 8949) instead of JSON, so that the type adapters of the
+// handlers stream into the framed transport as they do into the JSON one. The arrays and the
+// objects are written with the indefinite length, as their sizes are not known in advance.
+class CborWriter extends JsonWriter {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+  private static final int INDEFINITE_ARRAY = 0x9f;
+  private static final int INDEFINITE_MAP = 0xbf;
+  private static final int BREAK = 0xff;
+  private static final int FALSE = 0xf4;
+  private static final int TRUE = 0xf5;
+  private static final int NULL = 0xf6;
+  private static final int FLOAT32 = 0xfa;
+  private static final int FLOAT64 = 0xfb;
+
+  private final OutputStream out;
+  @Nullable private String deferredName;
+
+  CborWriter(OutputStream out) {
+    super(UnusedWriter.INSTANCE);
+    this.out = out;
+    // Same as the JSON transport, whose writer is created by the default Gson.
+    setSerializeNulls(false);
+  }
+
+  @Override
+  public JsonWriter beginArray() throws IOException {
+    writeDeferredName();
+    out.write(INDEFINITE_ARRAY);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endArray() throws IOException {
+    out.write(BREAK);
+    return this;
+  }
+
+  @Override
+  public JsonWriter beginObject() throws IOException {
+    writeDeferredName();
+    out.write(INDEFINITE_MAP);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endObject() throws IOException {
+    if (deferredName != null) {
+      throw new IllegalStateException("No value for " + deferredName);
+    }
+    out.write(BREAK);
+    return this;
+  }
+
+  @Override
+  public JsonWriter name(String name) {
+    Objects.requireNonNull(name, "name == null");
+    if (deferredName != null) {
+      throw new IllegalStateException("No value for " + deferredName);
+    }
+    // The name is written with the value, so that a null value can drop it.
+    deferredName = name;
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    writeDeferredName();
+    writeText(value);
+    return this;
+  }
+
+  @Override
+  public JsonWriter jsonValue(String value) {
+    throw new UnsupportedOperationException("A JSON text cannot be written as CBOR");
+  }
+
+  @Override
+  public JsonWriter nullValue() throws IOException {
+    if (deferredName != null) {
+      if (!getSerializeNulls()) {
+        deferredName = null;
+        return this;
+      }
+      writeDeferredName();
+    }
+    out.write(NULL);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(boolean value) throws IOException {
+    writeDeferredName();
+    out.write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(Boolean value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    return value(value.booleanValue());
+  }
+
+  @Override
+  public JsonWriter value(double value) throws IOException {
+    if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    writeDeferredName();
+    float floatValue = (float) value;
+    if (floatValue == value) {
+      out.write(FLOAT32);
+      writeBigEndian(Float.floatToIntBits(floatValue), 4);
+    } else {
+      out.write(FLOAT64);
+      writeBigEndian(Double.doubleToLongBits(value), 8);
+    }
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(long value) throws IOException {
+    writeDeferredName();
+    if (value >= 0) {
+      writeHead(MAJOR_UNSIGNED, value);
+    } else {
+      writeHead(MAJOR_NEGATIVE, -1 - value);
+    }
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+      return value(value.doubleValue());
+    }
+    if (value instanceof BigInteger && ((BigInteger) value).bitLength() >= 64) {
+      return value(value.doubleValue());
+    }
+    if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte
+        || value instanceof BigInteger) {
+      return value(value.longValue());
+    }
+    // E.g. LazilyParsedNumber, whose text tells whether it is an integer.
+    try {
+      return value(Long.parseLong(value.toString()));
+    } catch (NumberFormatException e) {
+      return value(value.doubleValue());
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void writeDeferredName() throws IOException {
+    if (deferredName != null) {
+      writeText(deferredName);
+      deferredName = null;
+    }
+  }
+
+  private void writeText(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeHead(MAJOR_TEXT, bytes.length);
+    out.write(bytes);
+  }
+
+  private void writeHead(int majorType, long value) throws IOException {
+    int major = majorType << 5;
+    if (value < 24) {
+      out.write(major | (int) value);
+    } else if (value <= 0xff) {
+      out.write(major | 24);
+      out.write((int) value);
+    } else if (value <= 0xffff) {
+      out.write(major | 25);
+      writeBigEndian(value, 2);
+    } else if (value <= 0xffffffffL) {
+      out.write(major | 26);
+      writeBigEndian(value, 4);
+    } else {
+      out.write(major | 27);
+      writeBigEndian(value, 8);
+    }
+  }
+
+  private void writeBigEndian(long value, int bytes) throws IOException {
+    for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+      out.write((int) (value >>> shift));
+    }
+  }
+
+  // JsonWriter requires a Writer, but all the writes go to the OutputStream.
+  private static class UnusedWriter extends Writer {
+    static final UnusedWriter INSTANCE = new UnusedWriter();
+
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
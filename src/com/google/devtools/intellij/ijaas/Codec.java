@@ -0,0 +1,70 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+// Binds the messages to the typed requests and responses. One Gson instance is shared by all the
+// connections, and the adapters of the handler types are looked up once when the handlers are
+// registered, so that the request path does not build them or go through JsonElement trees.
+class Codec {
+  private final Gson gson = new Gson();
+  private final ConcurrentHashMap<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
+
+  void register(Class<?> type) {
+    getAdapter(type);
+  }
+
+  @SuppressWarnings("unchecked")
+  <T> TypeAdapter<T> getAdapter(Class<T> type) {
+    return (TypeAdapter<T>) adapters.computeIfAbsent(type, gson::getAdapter);
+  }
+
+  JsonWriter newJsonWriter(Writer writer) throws IOException {
+    JsonWriter jsonWriter = gson.newJsonWriter(writer);
+    // There are several top-level values.
+    jsonWriter.setLenient(true);
+    return jsonWriter;
+  }
+
+  @Nullable
+  <T> T read(JsonReader reader, Class<T> type) throws IOException {
+    return getAdapter(type).read(reader);
+  }
+
+  <T> void write(JsonWriter writer, Class<T> type, @Nullable T value) throws IOException {
+    if (value == null) {
+      writer.nullValue();
+      return;
+    }
+    getAdapter(type).write(writer, value);
+  }
+
+  // Writes a value of a type that is not known in advance, e.g. the params of a notification.
+  @SuppressWarnings("unchecked")
+  void write(JsonWriter writer, @Nullable Object value) throws IOException {
+    if (value == null) {
+      writer.nullValue();
+      return;
+    }
+    write(writer, (Class<Object>) value.getClass(), value);
+  }
+}
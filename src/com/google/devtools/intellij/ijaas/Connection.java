@@ -0,0 +1,108 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+// The sending side of a client connection. The responses and the notifications are written from
+// multiple threads, so the messages are serialized here. They are streamed into the writer
+// without building a JsonElement tree first.
+public class Connection {
+  private static final Logger LOG = Logger.getInstance(Connection.class);
+  private static final AtomicLong nextId = new AtomicLong();
+
+  private final long id = nextId.incrementAndGet();
+  private final Codec codec;
+  private final MessageWriter writer;
+
+  Connection(Codec codec, MessageWriter writer) {
+    this.codec = codec;
+    this.writer = writer;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  // Returns the size of the message as MessageWriter.endMessage, or -1 if it is not written.
+  <T> long writeResult(long id, Class<T> resultClass, @Nullable T result) {
+    return write(
+        id,
+        out -> {
+          out.beginObject();
+          out.name("result");
+          codec.write(out, resultClass, result);
+          out.endObject();
+        });
+  }
+
+  long writeError(long id, String error, String cause) {
+    return write(
+        id,
+        out -> {
+          out.beginObject();
+          out.name("error").value(error);
+          out.name("cause").value(cause);
+          out.endObject();
+        });
+  }
+
+  // Sends a message that is not a response to a request. Vim passes the messages with the id 0
+  // to the channel callback.
+  public void notify(String method, Object params) {
+    write(
+        0,
+        out -> {
+          out.beginObject();
+          out.name("method").value(method);
+          out.name("params");
+          codec.write(out, params);
+          out.endObject();
+        });
+  }
+
+  private long write(long id, MessageBody body) {
+    // The responses are written in the order of completion. The clients match them by the id.
+    synchronized (writer) {
+      try {
+        JsonWriter out = writer.beginMessage();
+        out.beginArray();
+        out.value(id);
+        body.write(out);
+        out.endArray();
+        return writer.endMessage();
+      } catch (IOException | JsonIOException e) {
+        LOG.info("Cannot write a message", e);
+        return -1;
+      } catch (RuntimeException e) {
+        LOG.error("Cannot serialize a message", e);
+        try {
+          writer.abortMessage();
+        } catch (IOException abortException) {
+          // Ignore.
+        }
+        return -1;
+      }
+    }
+  }
+
+  private interface MessageBody {
+    void write(JsonWriter out) throws IOException;
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+// Runs the client connections. A connection blocks its thread while it is open, so each one gets
+// a virtual thread when the runtime supports them. Otherwise a platform thread is taken from a
+// pool that is bounded by the connection limit. Either way, the connections over the limit are
+// rejected instead of spawning threads without a limit.
+public class ConnectionExecutor {
+  private final int maxConnections;
+  private final ExecutorService executor;
+  @Nullable private final ThreadPoolExecutor platformExecutor;
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final AtomicLong acceptedConnections = new AtomicLong();
+  private final AtomicLong rejectedConnections = new AtomicLong();
+
+  ConnectionExecutor(int maxConnections) {
+    this.maxConnections = maxConnections;
+    ExecutorService virtualExecutor = newVirtualThreadExecutor();
+    if (virtualExecutor != null) {
+      executor = virtualExecutor;
+      platformExecutor = null;
+    } else {
+      platformExecutor =
+          new ThreadPoolExecutor(
+              0,
+              maxConnections,
+              60,
+              TimeUnit.SECONDS,
+              new SynchronousQueue<>(),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("ijaas-connection-%d")
+                  .setDaemon(true)
+                  .build());
+      executor = platformExecutor;
+    }
+  }
+
+  // Returns false if the connection is rejected.
+  boolean tryExecute(Runnable connection) {
+    if (openConnections.incrementAndGet() > maxConnections) {
+      openConnections.decrementAndGet();
+      rejectedConnections.incrementAndGet();
+      return false;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              connection.run();
+            } finally {
+              openConnections.decrementAndGet();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      openConnections.decrementAndGet();
+      rejectedConnections.incrementAndGet();
+      return false;
+    }
+    acceptedConnections.incrementAndGet();
+    return true;
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public boolean isVirtual() {
+    return platformExecutor == null;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getOpenConnections() {
+    return openConnections.get();
+  }
+
+  public long getAcceptedConnections() {
+    return acceptedConnections.get();
+  }
+
+  public long getRejectedConnections() {
+    return rejectedConnections.get();
+  }
+
+  public int getThreadCount() {
+    return platformExecutor != null ? platformExecutor.getPoolSize() : openConnections.get();
+  }
+
+  @Nullable
+  private static ExecutorService newVirtualThreadExecutor() {
+    // Looked up reflectively as the plugin targets runtimes without virtual threads.
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.psi.PsiFile;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+// Documents opened by the clients with java_did_open. They are kept in sync with the client
+// buffers by java_did_change so that the other methods can refer to them by path and version
+// instead of sending the whole text.
+public class DocumentStore {
+  private final ConcurrentHashMap<String, OpenDocument> documents = new ConcurrentHashMap<>();
+
+  @Nullable
+  public OpenDocument put(String file, OpenDocument document) {
+    return documents.put(normalize(file), document);
+  }
+
+  @Nullable
+  public OpenDocument get(String file) {
+    return documents.get(normalize(file));
+  }
+
+  public OpenDocument get(String file, int version) {
+    OpenDocument document = get(file);
+    if (document == null) {
+      throw new RuntimeException("The document is not opened");
+    }
+    if (document.getVersion() != version) {
+      throw new RuntimeException(
+          String.format(
+              "The document version mismatch: requested %d, current %d",
+              version, document.getVersion()));
+    }
+    return document;
+  }
+
+  @Nullable
+  public OpenDocument remove(String file) {
+    return documents.remove(normalize(file));
+  }
+
+  public void removeAll(Project project) {
+    documents.values().removeIf(document -> document.getProject() == project);
+  }
+
+  private static String normalize(String file) {
+    return FileUtil.toSystemIndependentName(file);
+  }
+
+  public static class OpenDocument {
+    private final Project project;
+    private final PsiFile psiFile;
+    private final Document document;
+    private volatile int version;
+
+    public OpenDocument(Project project, PsiFile psiFile, Document document, int version) {
+      this.project = project;
+      this.psiFile = psiFile;
+      this.document = document;
+      this.version = version;
+    }
+
+    public Project getProject() {
+      return project;
+    }
+
+    public PsiFile getPsiFile() {
+      return psiFile;
+    }
+
+    public Document getDocument() {
+      return document;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public void setVersion(int version) {
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+
+// Editors used for the code completion of the opened documents. An editor is expensive to create
+// and has to be released explicitly, so they are reused across the requests. All the methods
+// except the stats accessors must be called on EDT.
+public class EditorPool {
+  private final int maxSize;
+  // In the access order, so that the eldest entry is the least recently used one.
+  private final LinkedHashMap<Document, Editor> editors = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile int size;
+
+  // The subscription to the project events ends when the parent is disposed.
+  public EditorPool(int maxSize, Disposable parentDisposable) {
+    this.maxSize = maxSize;
+    ApplicationManager.getApplication()
+        .getMessageBus()
+        .connect(parentDisposable)
+        .subscribe(
+            ProjectManager.TOPIC,
+            new ProjectManagerListener() {
+              @Override
+              public void projectClosing(@NotNull Project project) {
+                releaseAll(project);
+              }
+            });
+  }
+
+  public Editor acquire(Project project, Document document) {
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    Editor editor = editors.get(document);
+    if (editor != null && !editor.isDisposed() && editor.getProject() == project) {
+      hits.incrementAndGet();
+      return editor;
+    }
+    misses.incrementAndGet();
+    if (editor != null) {
+      editors.remove(document);
+      releaseEditor(editor);
+    }
+    editor = EditorFactory.getInstance().createEditor(document, project);
+    editors.put(document, editor);
+    Iterator<Editor> it = editors.values().iterator();
+    while (editors.size() > maxSize) {
+      Editor eldest = it.next();
+      it.remove();
+      releaseEditor(eldest);
+    }
+    size = editors.size();
+    return editor;
+  }
+
+  public void release(Document document) {
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    Editor editor = editors.remove(document);
+    if (editor != null) {
+      releaseEditor(editor);
+    }
+    size = editors.size();
+  }
+
+  private void releaseAll(Project project) {
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    List<Editor> released = new ArrayList<>();
+    for (Iterator<Map.Entry<Document, Editor>> it = editors.entrySet().iterator();
+        it.hasNext(); ) {
+      Editor editor = it.next().getValue();
+      if (editor.getProject() == project) {
+        it.remove();
+        released.add(editor);
+      }
+    }
+    released.forEach(EditorPool::releaseEditor);
+    size = editors.size();
+  }
+
+  private static void releaseEditor(Editor editor) {
+    if (!editor.isDisposed()) {
+      EditorFactory.getInstance().releaseEditor(editor);
+    }
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+// The framed transport for the clients other than Vim. A client selects it by sending PREFACE as
+// the first bytes of the connection, and the server answers with PREFACE. After that, every message
+// in both directions is a frame: the length of the payload as a 4-byte big-endian integer followed
+// by the message encoded in CBOR (RFC 8949). The messages are the same arrays and objects as in
+// JSON. The preface is the CBOR self-describe tag, which cannot start a JSON message.
+final class Framing {
+  static final byte[] PREFACE = {(byte) 0xd9, (byte) 0xd9, (byte) 0xf7};
+  private static final int MAX_FRAME_SIZE = Integer.getInteger("ijaas.maxFrameSize", 64 << 20);
+
+  private Framing() {}
+
+  // Consumes the preface if the stream starts with it. Otherwise the stream is left as is.
+  static boolean readPreface(BufferedInputStream in) throws IOException {
+    in.mark(PREFACE.length);
+    for (byte b : PREFACE) {
+      if (in.read() != (b & 0xff)) {
+        in.reset();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Returns null at the end of the stream.
+  @Nullable
+  static byte[] readFrame(DataInputStream in) throws IOException {
+    int first = in.read();
+    if (first == -1) {
+      return null;
+    }
+    int length =
+        first << 24
+            | in.readUnsignedByte() << 16
+            | in.readUnsignedByte() << 8
+            | in.readUnsignedByte();
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("The frame is too large: " + Integer.toUnsignedString(length));
+    }
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return payload;
+  }
+
+  static void writeFrame(DataOutputStream out, ByteArrayOutputStream payload) throws IOException {
+    out.writeInt(payload.size());
+    payload.writeTo(out);
+    out.flush();
+  }
+}
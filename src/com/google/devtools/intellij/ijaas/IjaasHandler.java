@@ -13,8 +13,18 @@
 // limitations under the License.
 package com.google.devtools.intellij.ijaas;
 
-import com.google.gson.JsonElement;
+import javax.annotation.Nullable;
 
-public interface IjaasHandler {
-  JsonElement handle(JsonElement request);
+public interface IjaasHandler<ReqT, ResT> {
+  Class<ReqT> requestClass();
+
+  Class<ResT> responseClass();
+
+  ResT handleRequest(@Nullable ReqT request, RequestContext context);
+
+  // The file that the request is about, if it is superseded by a newer request for the file.
+  @Nullable
+  default String getFile(ReqT request) {
+    return null;
+  }
 }
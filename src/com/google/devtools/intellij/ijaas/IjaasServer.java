@@ -13,142 +13,647 @@
 // limitations under the License.
 package com.google.devtools.intellij.ijaas;
 
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharStreams;
+import com.google.devtools.intellij.ijaas.RequestReader.GenericRequest;
+import com.google.devtools.intellij.ijaas.RequestScheduler.Priority;
+import com.google.devtools.intellij.ijaas.handlers.CompletionCache;
+import com.google.devtools.intellij.ijaas.handlers.CompletionUsage;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsCache;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsPublisher;
 import com.google.devtools.intellij.ijaas.handlers.EchoHandler;
+import com.google.devtools.intellij.ijaas.handlers.InspectionRunner;
 import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompletionAcceptedHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidChangeHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidCloseHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidOpenHandler;
 import com.google.devtools.intellij.ijaas.handlers.JavaGetImportCandidatesHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcChangedHandler;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateBatchHandler;
 import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonStreamParser;
-import com.google.gson.stream.JsonWriter;
+import com.google.devtools.intellij.ijaas.handlers.ServerStatsHandler;
+import com.google.devtools.intellij.ijaas.handlers.ShortNameCache;
+import com.google.devtools.intellij.ijaas.handlers.Warmup;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
 
-public class IjaasServer {
-  private final int port;
-  private final Gson gson = new Gson();
-  private final HashMap<String, IjaasHandler> handlers = new HashMap<>();
+// The server is an application service, so that one server on one port serves all the open
+// projects. Each request is routed to its project by the file path with ProjectResolver.
+public class IjaasServer implements Disposable {
+  private static final Logger LOG = Logger.getInstance(IjaasServer.class);
+  // The methods that update the documents. They are run in the order of arrival before reading
+  // the next request, so that the later requests see their changes.
+  private static final ImmutableSet<String> SEQUENTIAL_METHODS =
+      ImmutableSet.of("java_did_open", "java_did_change", "java_did_close");
+  // The methods whose request for a file makes the older ones in flight for the file stale.
+  private static final ImmutableSet<String> SUPERSEDABLE_METHODS =
+      ImmutableSet.of("java_complete", "java_src_update");
+  private static final String CANCEL_METHOD = "$/cancel";
+  // The background runs of java_src_changed are recorded as this method.
+  private static final String DIAGNOSTICS_METHOD = "diagnostics";
+  private static final String WARMUP_METHOD = "warmup";
+  private static final String UNKNOWN_METHOD = "<unknown>";
+  private static final String SHUTDOWN_REASON = "server shut down";
 
-  IjaasServer(int port) {
-    this.port = port;
+  private final int port = Integer.getInteger("ijaas.port", 5800);
+  @Nullable private final Path socketPath = getSocketPath();
+  private final AtomicBoolean started = new AtomicBoolean();
+  @Nullable private volatile ServerSocket serverSocket;
+  @Nullable private volatile ServerSocketChannel unixServerChannel;
+  @Nullable private volatile Path instanceFile;
+  private volatile boolean disposed;
+  private final Set<Transport> transports = ConcurrentHashMap.newKeySet();
+  private final Codec codec = new Codec();
+  private final HashMap<String, IjaasHandler<?, ?>> handlers = new HashMap<>();
+  private final ServerMetrics metrics = new ServerMetrics();
+  private final ProjectResolver projectResolver = new ProjectResolver(this);
+  private final DocumentStore documents = new DocumentStore();
+  private final EditorPool editorPool =
+      new EditorPool(Integer.getInteger("ijaas.editorPoolSize", 16), this);
+  private final CompletionCache completionCache =
+      new CompletionCache(Integer.getInteger("ijaas.completionCacheSize", 64));
+  private final ShortNameCache shortNameCache = new ShortNameCache();
+  private final CompletionUsage completionUsage =
+      new CompletionUsage(Integer.getInteger("ijaas.completionUsageMaxWords", 10_000));
+  private final DiagnosticsCache diagnosticsCache =
+      new DiagnosticsCache(Integer.getInteger("ijaas.diagnosticsCacheSize", 256));
+  private final InspectionRunner inspectionRunner =
+      new InspectionRunner(
+          Integer.getInteger(
+              "ijaas.inspectionParallelism",
+              Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+  private final ConnectionExecutor connectionExecutor =
+      new ConnectionExecutor(Integer.getInteger("ijaas.maxConnections", 64));
+  private final int maxInFlightRequests = Integer.getInteger("ijaas.maxInFlightRequests", 16);
+  private final RequestScheduler scheduler = newScheduler();
+  private final SupersedeTracker supersedeTracker = new SupersedeTracker();
+  @Nullable private final TraceRecorder traceRecorder = TraceRecorder.create(codec);
+  private final DiagnosticsPublisher diagnosticsPublisher;
+  private final Warmup warmup;
+
+  public IjaasServer() {
     // TODO: Add handlers
     handlers.put("echo", new EchoHandler());
-    handlers.put("java_complete", new JavaCompleteHandler());
-    handlers.put("java_src_update", new JavaSrcUpdateHandler());
-    handlers.put("java_get_import_candidates", new JavaGetImportCandidatesHandler());
+    JavaCompleteHandler completeHandler =
+        new JavaCompleteHandler(
+            projectResolver, documents, editorPool, completionCache, completionUsage);
+    handlers.put("java_complete", completeHandler);
+    handlers.put(
+        "java_completion_accepted",
+        new JavaCompletionAcceptedHandler(projectResolver, completionUsage));
+    JavaSrcUpdateHandler srcUpdateHandler =
+        new JavaSrcUpdateHandler(projectResolver, inspectionRunner, diagnosticsCache);
+    handlers.put("java_src_update", srcUpdateHandler);
+    handlers.put(
+        "java_src_update_batch",
+        new JavaSrcUpdateBatchHandler(
+            projectResolver,
+            inspectionRunner,
+            diagnosticsCache,
+            Integer.getInteger("ijaas.batchParallelism", 4)));
+    diagnosticsPublisher =
+        new DiagnosticsPublisher(
+            srcUpdateHandler,
+            connection ->
+                new RequestContext(
+                    0, DIAGNOSTICS_METHOD, connection, metrics.forMethod(DIAGNOSTICS_METHOD)),
+            Integer.getInteger("ijaas.diagnosticsParallelism", 2),
+            this);
+    handlers.put("java_src_changed", new JavaSrcChangedHandler(diagnosticsPublisher));
+    JavaGetImportCandidatesHandler importCandidatesHandler =
+        new JavaGetImportCandidatesHandler(projectResolver, documents, shortNameCache);
+    handlers.put("java_get_import_candidates", importCandidatesHandler);
+    handlers.put("java_did_open", new JavaDidOpenHandler(projectResolver, documents, editorPool));
+    handlers.put("java_did_change", new JavaDidChangeHandler(documents));
+    handlers.put("java_did_close", new JavaDidCloseHandler(documents, editorPool));
+    handlers.put(
+        "server_stats",
+        new ServerStatsHandler(
+            metrics,
+            editorPool,
+            completionCache,
+            completeHandler,
+            diagnosticsCache,
+            shortNameCache,
+            inspectionRunner,
+            connectionExecutor));
+    // The warm-up has no client. Its partial results, if any, are discarded.
+    Connection nullConnection =
+        new Connection(codec, MessageWriter.json(codec, CharStreams.nullWriter()));
+    warmup =
+        new Warmup(
+            completeHandler,
+            importCandidatesHandler,
+            inspectionRunner,
+            () ->
+                new RequestContext(
+                    0, WARMUP_METHOD, nullConnection, metrics.forMethod(WARMUP_METHOD)));
+    codec.register(CancelParams.class);
+    for (IjaasHandler<?, ?> handler : handlers.values()) {
+      codec.register(handler.requestClass());
+      codec.register(handler.responseClass());
+    }
+    ApplicationManager.getApplication()
+        .getMessageBus()
+        .connect(this)
+        .subscribe(
+            ProjectManager.TOPIC,
+            new ProjectManagerListener() {
+              @Override
+              public void projectClosed(@NotNull Project project) {
+                // The editors are released by EditorPool when the project is closing.
+                documents.removeAll(project);
+                completionCache.invalidate(project);
+                diagnosticsCache.invalidate(project);
+              }
+            });
   }
 
+  static IjaasServer getInstance() {
+    return ApplicationManager.getApplication().getService(IjaasServer.class);
+  }
+
+  // Called when each project is opened. Only the first call starts the server. It listens on the
+  // loopback TCP port, and on a Unix domain socket if the runtime supports them. Either is enough,
+  // e.g. when another IDE instance has taken the port.
   void start() {
-    new Thread(
-            () -> {
-              ExecutorService executorService = Executors.newCachedThreadPool();
-              try (ServerSocket serverSocket =
-                  new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
-                while (true) {
-                  Socket socket = serverSocket.accept();
-                  executorService.execute(() -> process(socket));
-                }
-              } catch (IOException e) {
-                throw new RuntimeException(e);
-              }
-            })
-        .start();
+    if (disposed || !started.compareAndSet(false, true)) {
+      return;
+    }
+    ServerSocket serverSocket = null;
+    try {
+      serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    } catch (IOException e) {
+      LOG.warn("Cannot listen on port " + port, e);
+    }
+    ServerSocketChannel unixServerChannel = null;
+    if (socketPath != null) {
+      try {
+        unixServerChannel = UnixDomainSockets.bind(socketPath);
+        if (unixServerChannel == null) {
+          LOG.info("Unix domain sockets are not supported by the runtime");
+        }
+      } catch (IOException e) {
+        LOG.warn("Cannot listen on " + socketPath, e);
+      }
+    }
+    if (serverSocket == null && unixServerChannel == null) {
+      LOG.error("Cannot listen on port " + port);
+      return;
+    }
+    this.serverSocket = serverSocket;
+    this.unixServerChannel = unixServerChannel;
+    if (serverSocket != null) {
+      ServerSocket tcp = serverSocket;
+      startAccepting("ijaas-accept", () -> Transport.of(tcp.accept()), () -> !tcp.isClosed());
+    }
+    if (unixServerChannel != null) {
+      ServerSocketChannel unix = unixServerChannel;
+      startAccepting("ijaas-accept-unix", () -> Transport.of(unix.accept()), unix::isOpen);
+    }
+    publishInstance(
+        serverSocket != null ? port : null, unixServerChannel != null ? socketPath : null);
+  }
+
+  // Called when each project is opened. The warm-up starts once the project is indexed.
+  void warmUp(Project project) {
+    if (Boolean.parseBoolean(System.getProperty("ijaas.warmup", "true"))) {
+      warmup.runWhenSmart(project);
+    }
+  }
+
+  private void startAccepting(String name, Acceptor acceptor, BooleanSupplier isOpen) {
+    Thread thread = new Thread(() -> acceptConnections(acceptor, isOpen), name);
+    thread.setDaemon(true);
+    thread.start();
   }
 
-  private void process(Socket socket) {
+  private void acceptConnections(Acceptor acceptor, BooleanSupplier isOpen) {
+    try {
+      while (!disposed && isOpen.getAsBoolean()) {
+        Transport transport;
+        try {
+          transport = acceptor.accept();
+        } catch (IOException e) {
+          if (disposed) {
+            break;
+          }
+          // A failure of one connection should not stop the server. Back off a little in case
+          // this is persistent, e.g. running out of file descriptors.
+          LOG.warn("Cannot accept a connection", e);
+          Thread.sleep(100);
+          continue;
+        }
+        if (!connectionExecutor.tryExecute(() -> process(transport))) {
+          LOG.warn("Too many connections. Rejected a connection.");
+          closeQuietly(transport);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Nullable
+  private static Path getSocketPath() {
+    String socket = System.getProperty("ijaas.socket", "");
+    if (socket.equals("false")) {
+      return null;
+    }
+    return socket.isEmpty()
+        ? Paths.get(PathManager.getSystemPath(), "ijaas.sock")
+        : Paths.get(socket);
+  }
+
+  // Writes ~/.ijaas/instances/<pid>.json, so that the clients can find the addresses of each IDE
+  // instance. It is removed when the server is disposed.
+  private void publishInstance(@Nullable Integer port, @Nullable Path socketPath) {
+    Instance instance = new Instance();
+    instance.pid = getPid();
+    instance.port = port;
+    instance.socket = socketPath != null ? socketPath.toAbsolutePath().toString() : null;
+    Path file =
+        Paths.get(System.getProperty("user.home"), ".ijaas", "instances", instance.pid + ".json");
+    try {
+      Files.createDirectories(file.getParent());
+      StringWriter out = new StringWriter();
+      codec.write(codec.newJsonWriter(out), Instance.class, instance);
+      Files.write(file, out.toString().getBytes(StandardCharsets.UTF_8));
+      instanceFile = file;
+    } catch (IOException e) {
+      LOG.warn("Cannot write " + file, e);
+    }
+  }
+
+  private static long getPid() {
+    // The name is "<pid>@<host>" on the supported runtimes.
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    try {
+      return Long.parseLong(name.substring(0, name.indexOf('@')));
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  private void process(Transport transport) {
+    Semaphore inFlightRequests = new Semaphore(maxInFlightRequests);
+    ConcurrentHashMap<Long, RequestContext> requests = new ConcurrentHashMap<>();
+    transports.add(transport);
     try {
       try {
-        JsonStreamParser parser =
-            new JsonStreamParser(
-                new InputStreamReader(
-                    new BufferedInputStream(socket.getInputStream()), StandardCharsets.UTF_8));
-        try (JsonWriter writer =
-            gson.newJsonWriter(
-                new OutputStreamWriter(
-                    new BufferedOutputStream(socket.getOutputStream()), StandardCharsets.UTF_8))) {
-          // There are several top-level values.
-          writer.setLenient(true);
-          while (parser.hasNext()) {
-            JsonArray request = parser.next().getAsJsonArray();
-            long id = request.get(0).getAsLong();
-            GenericRequest genericRequest = gson.fromJson(request.get(1), GenericRequest.class);
-
-            JsonElement response;
-            try {
-              response = gson.toJsonTree(new GenericResponse(processRequest(genericRequest)));
-            } catch (Exception e) {
-              response =
-                  gson.toJsonTree(
-                      new ErrorResponse(e.getMessage(), Throwables.getStackTraceAsString(e)));
+        BufferedInputStream in = transport.getInputStream();
+        OutputStream out = new BufferedOutputStream(transport.getOutputStream());
+        // JSON is the default for Vim. The other clients can start with the preface to use the
+        // framed transport.
+        boolean framed = Framing.readPreface(in);
+        RequestReader reader =
+            framed
+                ? RequestReader.framed(codec, in, this::getParamsClass)
+                : RequestReader.json(
+                    codec, new InputStreamReader(in, StandardCharsets.UTF_8), this::getParamsClass);
+        try (MessageWriter writer =
+            framed
+                ? MessageWriter.framed(out)
+                : MessageWriter.json(codec, new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+          Connection connection = new Connection(codec, writer);
+          try {
+            while (reader.hasNext()) {
+              GenericRequest genericRequest = reader.next();
+              long id = genericRequest.id;
+              String method = genericRequest.method;
+              RequestContext context =
+                  new RequestContext(
+                      id, Strings.nullToEmpty(method), connection, getMethodStats(method));
+              metrics.getInFlightRequests().incrementAndGet();
+              if (traceRecorder != null) {
+                context.setTraceParams(traceRecorder.serializeParams(genericRequest.params));
+              }
+              JsonParseException paramsError = genericRequest.paramsError;
+              if (paramsError != null) {
+                respond(
+                    connection,
+                    context,
+                    Void.class,
+                    () -> {
+                      throw new IllegalArgumentException(
+                          "Invalid params: " + paramsError.getMessage(), paramsError);
+                    });
+                continue;
+              }
+              if (CANCEL_METHOD.equals(method)) {
+                CancelParams params = (CancelParams) genericRequest.params;
+                respond(connection, context, Void.class, () -> cancel(requests, params));
+                continue;
+              }
+              if (SEQUENTIAL_METHODS.contains(method)) {
+                processRequest(connection, genericRequest, context);
+                continue;
+              }
+              // Track the request from its arrival, so that it can be cancelled while queued.
+              requests.put(id, context);
+              String supersedeKey =
+                  SUPERSEDABLE_METHODS.contains(method)
+                      ? SupersedeTracker.key(connection.getId(), method, getFile(genericRequest))
+                      : null;
+              if (supersedeKey != null) {
+                supersedeTracker.register(supersedeKey, context);
+              }
+              Runnable untrack =
+                  () -> {
+                    requests.remove(id, context);
+                    if (supersedeKey != null) {
+                      supersedeTracker.unregister(supersedeKey, context);
+                    }
+                  };
+              // Stop reading when the connection has too many requests in flight.
+              inFlightRequests.acquire();
+              boolean accepted;
+              try {
+                accepted =
+                    scheduler.trySubmit(
+                        method,
+                        () -> {
+                          try {
+                            processRequest(connection, genericRequest, context);
+                          } finally {
+                            untrack.run();
+                            inFlightRequests.release();
+                          }
+                        },
+                        // Answered when the server is disposed before the request starts, so
+                        // that its permit is released and the connection can close.
+                        () -> {
+                          try {
+                            respond(
+                                connection,
+                                context,
+                                Void.class,
+                                () -> {
+                                  throw new RequestCancelledException(SHUTDOWN_REASON);
+                                });
+                          } finally {
+                            untrack.run();
+                            inFlightRequests.release();
+                          }
+                        });
+              } catch (RejectedExecutionException e) {
+                metrics.getInFlightRequests().decrementAndGet();
+                untrack.run();
+                inFlightRequests.release();
+                throw e;
+              }
+              if (!accepted) {
+                untrack.run();
+                inFlightRequests.release();
+                respond(
+                    connection,
+                    context,
+                    Void.class,
+                    () -> {
+                      throw new ServerBusyException();
+                    });
+              }
             }
-            writer.beginArray();
-            writer.value(id);
-            gson.toJson(response, writer);
-            writer.endArray();
-            writer.flush();
+          } finally {
+            // Let the requests in flight write their responses before closing the connection.
+            inFlightRequests.acquireUninterruptibly(maxInFlightRequests);
+            diagnosticsPublisher.unsubscribe(connection);
           }
         }
       } finally {
-        socket.close();
-      }
-    } catch (JsonIOException e) {
-      Throwable t = e.getCause();
-      if (t instanceof EOFException) {
-        // Ignore. This happens when the input is empty.
-      } else {
-        throw new RuntimeException(e);
+        transports.remove(transport);
+        transport.close();
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    } catch (EOFException e) {
+      // Ignore. This happens when the input is empty.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException | RuntimeException e) {
+      LOG.info("Connection closed", e);
     }
   }
 
-  private JsonElement processRequest(GenericRequest genericRequest) {
-    if (genericRequest == null) {
-      throw new RuntimeException("method is required");
+  @Nullable
+  private Class<?> getParamsClass(String method) {
+    if (CANCEL_METHOD.equals(method)) {
+      return CancelParams.class;
     }
-    IjaasHandler handler = handlers.get(genericRequest.method);
+    IjaasHandler<?, ?> handler = handlers.get(method);
+    return handler != null ? handler.requestClass() : null;
+  }
+
+  private void processRequest(
+      Connection connection, GenericRequest genericRequest, RequestContext context) {
+    String method = genericRequest.method;
+    IjaasHandler<?, ?> handler = method != null ? handlers.get(method) : null;
     if (handler == null) {
-      throw new RuntimeException(genericRequest.method + "is not found");
+      respond(
+          connection,
+          context,
+          Void.class,
+          () -> {
+            throw new RuntimeException(
+                method == null ? "method is required" : method + " is not found");
+          });
+      return;
     }
-    return handler.handle(genericRequest.params);
+    processRequest(connection, handler, genericRequest.params, context);
   }
 
-  private static class GenericRequest {
-    @Nullable String method;
-    @Nullable JsonElement params;
+  private <ReqT, ResT> void processRequest(
+      Connection connection,
+      IjaasHandler<ReqT, ResT> handler,
+      @Nullable Object params,
+      RequestContext context) {
+    ReqT request = handler.requestClass().cast(params);
+    respond(
+        connection,
+        context,
+        handler.responseClass(),
+        () -> handler.handleRequest(request, context));
   }
 
-  private static class GenericResponse {
-    private final JsonElement result;
+  private <ResT> void respond(
+      Connection connection,
+      RequestContext context,
+      Class<ResT> resultClass,
+      Supplier<ResT> request) {
+    MethodStats stats = context.getStats();
+    long startNanos = System.nanoTime();
+    stats.getQueueWait().recordNanos(startNanos - context.getArrivalNanos());
+    ResT result = null;
+    String error = null;
+    String cause = null;
+    try {
+      result = request.get();
+    } catch (RequestCancelledException e) {
+      stats.getCancellations().incrementAndGet();
+      error = e.getMessage();
+      cause = e.getMessage();
+    } catch (ServerBusyException e) {
+      stats.getRejections().incrementAndGet();
+      error = e.getMessage();
+      cause = e.getMessage();
+    } catch (Exception e) {
+      stats.getErrors().incrementAndGet();
+      error = e.getMessage();
+      cause = Throwables.getStackTraceAsString(e);
+    }
+    long writeStartNanos = System.nanoTime();
+    stats.getHandler().recordNanos(writeStartNanos - startNanos);
+    if (context.hasNonBlockingReadActions()) {
+      stats.getReadActionRestarts().record(context.getReadActionRestarts());
+    }
+    // The result is serialized while it is written.
+    long responseSize =
+        cause != null
+            ? connection.writeError(context.getId(), error, cause)
+            : connection.writeResult(context.getId(), resultClass, result);
+    long endNanos = System.nanoTime();
+    stats.getSerialization().recordNanos(endNanos - writeStartNanos);
+    stats.getTotal().recordNanos(endNanos - context.getArrivalNanos());
+    if (traceRecorder != null) {
+      traceRecorder.record(context, startNanos, endNanos, responseSize, error);
+    }
+    metrics.getInFlightRequests().decrementAndGet();
+  }
 
-    GenericResponse(JsonElement result) {
-      this.result = result;
+  private MethodStats getMethodStats(@Nullable String method) {
+    // Do not let the clients create the stats for arbitrary method names.
+    if (method != null && (handlers.containsKey(method) || CANCEL_METHOD.equals(method))) {
+      return metrics.forMethod(method);
     }
+    return metrics.forMethod(UNKNOWN_METHOD);
   }
 
-  private static class ErrorResponse {
-    private final String error;
-    private final String cause;
+  @Nullable
+  private static Void cancel(Map<Long, RequestContext> requests, @Nullable CancelParams params) {
+    if (params == null || params.id == null) {
+      throw new IllegalArgumentException("id is required");
+    }
+    RequestContext context = requests.get(params.id);
+    if (context != null) {
+      context.cancel(RequestCancelledException.CANCELLED);
+    }
+    return null;
+  }
 
-    ErrorResponse(String error, String cause) {
-      this.error = error;
-      this.cause = cause;
+  @Nullable
+  private String getFile(GenericRequest genericRequest) {
+    IjaasHandler<?, ?> handler = handlers.get(genericRequest.method);
+    if (handler == null || genericRequest.params == null) {
+      return null;
     }
+    return getFile(handler, genericRequest.params);
+  }
+
+  @Nullable
+  private static <ReqT> String getFile(IjaasHandler<ReqT, ?> handler, Object params) {
+    return handler.getFile(handler.requestClass().cast(params));
+  }
+
+  private static RequestScheduler newScheduler() {
+    // The background lanes together take less than the workers, so that there are always workers
+    // left for the interactive requests.
+    RequestScheduler scheduler =
+        new RequestScheduler(Integer.getInteger("ijaas.maxWorkers", 16), 4, 64);
+    scheduler.addLane("java_complete", Priority.INTERACTIVE, 4, 16);
+    scheduler.addLane("java_get_import_candidates", Priority.INTERACTIVE, 2, 16);
+    scheduler.addLane("java_src_update", Priority.BACKGROUND, 2, 32);
+    scheduler.addLane("java_src_update_batch", Priority.BACKGROUND, 1, 4);
+    return scheduler;
+  }
+
+  @Override
+  public void dispose() {
+    disposed = true;
+    ServerSocket serverSocket = this.serverSocket;
+    if (serverSocket != null) {
+      closeQuietly(serverSocket);
+    }
+    ServerSocketChannel unixServerChannel = this.unixServerChannel;
+    if (unixServerChannel != null) {
+      closeQuietly(unixServerChannel);
+      deleteQuietly(socketPath);
+    }
+    Path instanceFile = this.instanceFile;
+    if (instanceFile != null) {
+      deleteQuietly(instanceFile);
+    }
+    // The reads of the connections fail, and they stop after their requests in flight.
+    transports.forEach(IjaasServer::closeQuietly);
+    connectionExecutor.shutdown();
+    scheduler.shutdownNow();
+    diagnosticsPublisher.shutdown();
+    if (traceRecorder != null) {
+      closeQuietly(traceRecorder);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // Ignore.
+    }
+  }
+
+  private interface Acceptor {
+    Transport accept() throws IOException;
+  }
+
+  private static class Instance {
+    long pid;
+    @Nullable Integer port;
+    @Nullable String socket;
+  }
+
+  private static class CancelParams {
+    @Nullable Long id;
   }
 }
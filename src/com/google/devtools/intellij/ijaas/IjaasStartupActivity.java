@@ -7,15 +7,8 @@ import org.jetbrains.annotations.NotNull;
 public class IjaasStartupActivity implements StartupActivity {
   @Override
   public void runActivity(@NotNull Project project) {
-    IjaasServer server = new IjaasServer(getPort());
+    IjaasServer server = IjaasServer.getInstance();
     server.start();
-  }
-
-  private static int getPort() {
-    String portStr = System.getProperty("ijaas.port");
-    if (portStr == null) {
-      return 5800;
-    }
-    return Integer.parseInt(portStr);
+    server.warmUp(project);
   }
 }
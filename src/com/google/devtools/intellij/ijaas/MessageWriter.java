@@ -0,0 +1,148 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+// Writes the messages of a connection in the transport that the client selected. A message is
+// written between beginMessage and endMessage, which the caller serializes.
+abstract class MessageWriter implements Closeable {
+  static MessageWriter json(Codec codec, Writer writer) throws IOException {
+    CountingWriter counter = new CountingWriter(writer);
+    return new JsonMessageWriter(codec.newJsonWriter(counter), counter);
+  }
+
+  // Answers the preface of the client, and then writes the messages as frames.
+  static MessageWriter framed(OutputStream out) throws IOException {
+    out.write(Framing.PREFACE);
+    out.flush();
+    return new FramedMessageWriter(out);
+  }
+
+  abstract JsonWriter beginMessage() throws IOException;
+
+  // Returns the size of the message: characters for JSON, and bytes for the frames.
+  abstract long endMessage() throws IOException;
+
+  // Gives up the message that failed in the middle.
+  abstract void abortMessage() throws IOException;
+
+  private static class JsonMessageWriter extends MessageWriter {
+    private final JsonWriter writer;
+    private final CountingWriter counter;
+    private long messageStart;
+
+    JsonMessageWriter(JsonWriter writer, CountingWriter counter) {
+      this.writer = writer;
+      this.counter = counter;
+    }
+
+    @Override
+    JsonWriter beginMessage() {
+      messageStart = counter.count;
+      return writer;
+    }
+
+    @Override
+    long endMessage() throws IOException {
+      writer.flush();
+      return counter.count - messageStart;
+    }
+
+    @Override
+    void abortMessage() throws IOException {
+      // A part of the message is already in the stream, and the client cannot find where the
+      // next message starts.
+      writer.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  private static class FramedMessageWriter extends MessageWriter {
+    // Do not keep a buffer grown by an unusually large message.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+    private final DataOutputStream out;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    FramedMessageWriter(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    JsonWriter beginMessage() {
+      buffer.reset();
+      return new CborWriter(buffer);
+    }
+
+    @Override
+    long endMessage() throws IOException {
+      int size = buffer.size();
+      Framing.writeFrame(out, buffer);
+      if (size > MAX_RETAINED_BUFFER_SIZE) {
+        buffer = new ByteArrayOutputStream();
+      }
+      return size;
+    }
+
+    @Override
+    void abortMessage() {
+      // Nothing is sent until the frame is complete.
+      buffer.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private static class CountingWriter extends FilterWriter {
+    // Only updated by the writer of the current message.
+    private long count;
+
+    CountingWriter(Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      super.write(c);
+      count++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      super.write(cbuf, off, len);
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      super.write(str, off, len);
+      count += len;
+    }
+  }
+}
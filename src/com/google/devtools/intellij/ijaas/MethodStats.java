@@ -0,0 +1,89 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// The counters and the latency histograms of an RPC method.
+public class MethodStats {
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong cancellations = new AtomicLong();
+  // Rejected as the queue of the method was full.
+  private final AtomicLong rejections = new AtomicLong();
+  // From the arrival to the start of the processing.
+  private final Histogram queueWait = new Histogram();
+  // Blocked in Application#invokeAndWait, including the time running on EDT.
+  private final Histogram edtWait = new Histogram();
+  // In read actions, including the time waiting for them.
+  private final Histogram readAction = new Histogram();
+  // In the handler, including the two above.
+  private final Histogram handler = new Histogram();
+  // Converting the response to JSON and writing it.
+  private final Histogram serialization = new Histogram();
+  // From the arrival to the response.
+  private final Histogram total = new Histogram();
+  // The restarts of the non-blocking read actions per request, for the requests that use them.
+  // This is a count, not a duration.
+  private final Histogram readActionRestarts = new Histogram();
+
+  public AtomicLong getRequests() {
+    return requests;
+  }
+
+  public AtomicLong getErrors() {
+    return errors;
+  }
+
+  public AtomicLong getTimeouts() {
+    return timeouts;
+  }
+
+  public AtomicLong getCancellations() {
+    return cancellations;
+  }
+
+  public AtomicLong getRejections() {
+    return rejections;
+  }
+
+  public Histogram getQueueWait() {
+    return queueWait;
+  }
+
+  public Histogram getEdtWait() {
+    return edtWait;
+  }
+
+  public Histogram getReadAction() {
+    return readAction;
+  }
+
+  public Histogram getHandler() {
+    return handler;
+  }
+
+  public Histogram getSerialization() {
+    return serialization;
+  }
+
+  public Histogram getTotal() {
+    return total;
+  }
+
+  public Histogram getReadActionRestarts() {
+    return readActionRestarts;
+  }
+}
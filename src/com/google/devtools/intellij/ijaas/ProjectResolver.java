@@ -0,0 +1,185 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.intellij.ProjectTopics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectLocator;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+
+// Resolves the project that a path belongs to. The content roots of the open projects are indexed
+// and the results are cached per directory, so that a resolution is usually a single map lookup.
+// Everything is dropped when a project is opened or closed, or when the roots change.
+public class ProjectResolver {
+  // Only the directories in a project are cached. The others are resolved again, as a project
+  // that contains them can be opened or indexed later.
+  private final ConcurrentHashMap<String, Project> directoryCache = new ConcurrentHashMap<>();
+  private final Set<Project> subscribedProjects = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger generation = new AtomicInteger();
+  @Nullable private volatile Map<String, Project> contentRoots;
+
+  public ProjectResolver(Disposable parentDisposable) {
+    ApplicationManager.getApplication()
+        .getMessageBus()
+        .connect(parentDisposable)
+        .subscribe(
+            ProjectManager.TOPIC,
+            new ProjectManagerListener() {
+              @Override
+              public void projectOpened(@NotNull Project project) {
+                invalidate();
+              }
+
+              @Override
+              public void projectClosed(@NotNull Project project) {
+                subscribedProjects.remove(project);
+                invalidate();
+              }
+            });
+  }
+
+  @Nullable
+  public Project resolve(String file) {
+    String path = FileUtil.toSystemIndependentName(file);
+    int currentGeneration = generation.get();
+    Map<String, Project> roots = getContentRoots();
+    // The path itself can be a content root when a directory is given.
+    Project project = roots.get(path);
+    if (project != null) {
+      return project;
+    }
+    String directory = parentOf(path);
+    if (directory == null) {
+      return null;
+    }
+    Project cached = directoryCache.get(directory);
+    if (cached != null) {
+      return cached;
+    }
+    project = findInContentRoots(roots, directory);
+    if (project == null) {
+      project = guessProject(path);
+    }
+    // Do not cache the result if it was invalidated while resolving, e.g. as the project was
+    // closed. The generation is checked again after the put, as invalidate can run in between.
+    if (project != null && generation.get() == currentGeneration) {
+      directoryCache.put(directory, project);
+      if (generation.get() != currentGeneration) {
+        directoryCache.remove(directory, project);
+      }
+    }
+    return project;
+  }
+
+  public void invalidate() {
+    generation.incrementAndGet();
+    contentRoots = null;
+    directoryCache.clear();
+  }
+
+  private Map<String, Project> getContentRoots() {
+    Map<String, Project> roots = contentRoots;
+    if (roots != null) {
+      return roots;
+    }
+    int currentGeneration = generation.get();
+    Map<String, Project> newRoots = new HashMap<>();
+    ApplicationManager.getApplication()
+        .runReadAction(
+            () -> {
+              for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+                if (project.isDisposed() || project.isDefault()) {
+                  continue;
+                }
+                subscribeRootChanges(project);
+                for (VirtualFile root : ProjectRootManager.getInstance(project).getContentRoots()) {
+                  newRoots.put(root.getPath(), project);
+                }
+              }
+            });
+    // Do not publish the index if it was invalidated while being built.
+    if (generation.get() == currentGeneration) {
+      contentRoots = newRoots;
+    }
+    return newRoots;
+  }
+
+  private void subscribeRootChanges(Project project) {
+    if (!subscribedProjects.add(project)) {
+      return;
+    }
+    project
+        .getMessageBus()
+        .connect(project)
+        .subscribe(
+            ProjectTopics.PROJECT_ROOTS,
+            new ModuleRootListener() {
+              @Override
+              public void rootsChanged(@NotNull ModuleRootEvent event) {
+                invalidate();
+              }
+            });
+  }
+
+  @Nullable
+  private static Project findInContentRoots(Map<String, Project> roots, String directory) {
+    // Walk up to the nearest content root, so that the innermost one wins.
+    for (String path = directory; path != null; path = parentOf(path)) {
+      Project project = roots.get(path);
+      if (project != null) {
+        return project;
+      }
+    }
+    return null;
+  }
+
+  // Falls back to IntelliJ's heuristics for the files outside of the content roots. Only the
+  // nearest existing ancestor is looked at, without walking the file system.
+  @Nullable
+  private static Project guessProject(String path) {
+    LocalFileSystem localFileSystem = LocalFileSystem.getInstance();
+    for (String p = path; p != null; p = parentOf(p)) {
+      VirtualFile vf = localFileSystem.findFileByPath(p);
+      if (vf != null) {
+        return ProjectLocator.getInstance().guessProjectForFile(vf);
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String parentOf(String path) {
+    int index = path.lastIndexOf('/');
+    if (index < 0 || path.length() == 1) {
+      return null;
+    }
+    return index == 0 ? "/" : path.substring(0, index);
+  }
+}
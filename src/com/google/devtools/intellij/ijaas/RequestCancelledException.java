@@ -0,0 +1,25 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+// Thrown when a request is cancelled before it finishes. The message is sent back to the client
+// as the error.
+public class RequestCancelledException extends RuntimeException {
+  public static final String SUPERSEDED = "superseded";
+  public static final String CANCELLED = "cancelled";
+
+  public RequestCancelledException(String reason) {
+    super(reason);
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+// The state of a request in flight that is shared between the server and the handler.
+public class RequestContext {
+  private final long id;
+  private final String method;
+  private final Connection connection;
+  private final MethodStats stats;
+  private final long arrivalNanos = System.nanoTime();
+  private final AtomicInteger nonBlockingReadActions = new AtomicInteger();
+  private final AtomicInteger readActionRestarts = new AtomicInteger();
+  private final List<Runnable> cancelListeners = new ArrayList<>();
+  @Nullable private String cancelReason;
+  // The params as JSON, when the requests are traced.
+  @Nullable private volatile String traceParams;
+
+  RequestContext(long id, String method, Connection connection, MethodStats stats) {
+    this.id = id;
+    this.method = method;
+    this.connection = connection;
+    this.stats = stats;
+    stats.getRequests().incrementAndGet();
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public Connection getConnection() {
+    return connection;
+  }
+
+  public MethodStats getStats() {
+    return stats;
+  }
+
+  long getArrivalNanos() {
+    return arrivalNanos;
+  }
+
+  // Called after each non-blocking read action with the number of the times it was restarted for
+  // the write actions.
+  public void recordNonBlockingReadAction(int restarts) {
+    nonBlockingReadActions.incrementAndGet();
+    readActionRestarts.addAndGet(restarts);
+  }
+
+  @Nullable
+  String getTraceParams() {
+    return traceParams;
+  }
+
+  void setTraceParams(@Nullable String traceParams) {
+    this.traceParams = traceParams;
+  }
+
+  boolean hasNonBlockingReadActions() {
+    return nonBlockingReadActions.get() > 0;
+  }
+
+  int getReadActionRestarts() {
+    return readActionRestarts.get();
+  }
+
+  // Sends a part of the result before the response. The final response still has the whole
+  // result, so that the clients that do not handle the partial results can ignore them.
+  public void sendPartialResult(Object result) {
+    connection.notify("partial_result", new PartialResult(id, result));
+  }
+
+  // The listener is called right away if the request is already cancelled.
+  public void onCancel(Runnable listener) {
+    synchronized (cancelListeners) {
+      if (cancelReason == null) {
+        cancelListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  public boolean isCancelled() {
+    synchronized (cancelListeners) {
+      return cancelReason != null;
+    }
+  }
+
+  public void checkCancelled() {
+    synchronized (cancelListeners) {
+      if (cancelReason != null) {
+        throw new RequestCancelledException(cancelReason);
+      }
+    }
+  }
+
+  void cancel(String reason) {
+    List<Runnable> listeners;
+    synchronized (cancelListeners) {
+      if (cancelReason != null) {
+        return;
+      }
+      cancelReason = reason;
+      listeners = new ArrayList<>(cancelListeners);
+      cancelListeners.clear();
+    }
+    listeners.forEach(Runnable::run);
+  }
+
+  private static class PartialResult {
+    private final long id;
+    private final Object result;
+
+    PartialResult(long id, Object result) {
+      this.id = id;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import javax.annotation.Nullable;
+
+// Reads the requests of a connection, [id, {"method": ..., "params": ...}], either as JSON or from
+// the frames of the framed transport. The params are bound to the request class of the method
+// straight from the stream. Only when a client sends the params before the method, they are
+// buffered as a tree until the method is known. The params that cannot be bound are skipped, and
+// the request is answered with an error instead of closing the connection.
+abstract class RequestReader {
+  private final Codec codec;
+  // Returns the request class of a method, or null if the method is unknown.
+  private final Function<String, Class<?>> paramsClasses;
+
+  private RequestReader(Codec codec, Function<String, Class<?>> paramsClasses) {
+    this.codec = codec;
+    this.paramsClasses = paramsClasses;
+  }
+
+  static RequestReader json(Codec codec, Reader reader, Function<String, Class<?>> paramsClasses) {
+    return new JsonRequestReader(codec, reader, paramsClasses);
+  }
+
+  static RequestReader framed(
+      Codec codec, InputStream in, Function<String, Class<?>> paramsClasses) {
+    return new FramedRequestReader(codec, in, paramsClasses);
+  }
+
+  abstract boolean hasNext() throws IOException;
+
+  abstract GenericRequest next() throws IOException;
+
+  // The depth is the number of the arrays and the objects that the reader is in.
+  final GenericRequest read(JsonReader reader, IntSupplier depth) throws IOException {
+    GenericRequest genericRequest = new GenericRequest();
+    reader.beginArray();
+    genericRequest.id = reader.nextLong();
+    JsonElement bufferedParams = null;
+    if (reader.hasNext()) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "method":
+            genericRequest.method = reader.nextString();
+            break;
+          case "params":
+            if (genericRequest.method != null) {
+              int paramsDepth = depth.getAsInt();
+              try {
+                genericRequest.params = readParams(reader, genericRequest.method);
+              } catch (JsonParseException e) {
+                genericRequest.paramsError = e;
+                skipTo(reader, depth, paramsDepth);
+              }
+            } else {
+              bufferedParams = codec.read(reader, JsonElement.class);
+            }
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+    }
+    while (reader.hasNext()) {
+      reader.skipValue();
+    }
+    reader.endArray();
+    if (bufferedParams != null && genericRequest.method != null) {
+      Class<?> paramsClass = paramsClasses.apply(genericRequest.method);
+      if (paramsClass != null) {
+        try {
+          genericRequest.params = codec.getAdapter(paramsClass).fromJsonTree(bufferedParams);
+        } catch (JsonParseException e) {
+          genericRequest.paramsError = e;
+        }
+      }
+    }
+    return genericRequest;
+  }
+
+  @Nullable
+  private Object readParams(JsonReader reader, String method) throws IOException {
+    Class<?> paramsClass = paramsClasses.apply(method);
+    if (paramsClass == null) {
+      reader.skipValue();
+      return null;
+    }
+    return codec.read(reader, paramsClass);
+  }
+
+  // Skips the rest of a value that the adapter has failed in the middle of, up to where the value
+  // began.
+  private static void skipTo(JsonReader reader, IntSupplier depth, int valueDepth)
+      throws IOException {
+    while (depth.getAsInt() > valueDepth) {
+      JsonToken token = reader.peek();
+      if (token == JsonToken.NAME) {
+        reader.nextName();
+      } else if (token == JsonToken.END_OBJECT) {
+        reader.endObject();
+      } else if (token == JsonToken.END_ARRAY) {
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    // The adapter may have failed before consuming the value itself.
+    JsonToken token = reader.peek();
+    if (token != JsonToken.NAME && token != JsonToken.END_OBJECT) {
+      reader.skipValue();
+    }
+  }
+
+  private static class JsonRequestReader extends RequestReader {
+    private final NestingJsonReader reader;
+
+    JsonRequestReader(Codec codec, Reader reader, Function<String, Class<?>> paramsClasses) {
+      super(codec, paramsClasses);
+      this.reader = new NestingJsonReader(reader);
+      // There are several top-level values.
+      this.reader.setLenient(true);
+    }
+
+    @Override
+    boolean hasNext() throws IOException {
+      return reader.peek() != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    GenericRequest next() throws IOException {
+      return read(reader, reader::getDepth);
+    }
+  }
+
+  // Counts the arrays and the objects that have begun and not ended. JsonReader.skipValue() does
+  // not call these methods, but it returns at the depth it started.
+  private static class NestingJsonReader extends JsonReader {
+    private int depth;
+
+    NestingJsonReader(Reader reader) {
+      super(reader);
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+      super.beginArray();
+      depth++;
+    }
+
+    @Override
+    public void endArray() throws IOException {
+      super.endArray();
+      depth--;
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+      super.beginObject();
+      depth++;
+    }
+
+    @Override
+    public void endObject() throws IOException {
+      super.endObject();
+      depth--;
+    }
+
+    int getDepth() {
+      return depth;
+    }
+  }
+
+  private static class FramedRequestReader extends RequestReader {
+    private final DataInputStream in;
+    @Nullable private byte[] frame;
+
+    FramedRequestReader(Codec codec, InputStream in, Function<String, Class<?>> paramsClasses) {
+      super(codec, paramsClasses);
+      this.in = new DataInputStream(in);
+    }
+
+    @Override
+    boolean hasNext() throws IOException {
+      if (frame == null) {
+        frame = Framing.readFrame(in);
+      }
+      return frame != null;
+    }
+
+    @Override
+    GenericRequest next() throws IOException {
+      if (!hasNext()) {
+        throw new EOFException();
+      }
+      CborReader reader = new CborReader(frame);
+      frame = null;
+      GenericRequest genericRequest = read(reader, reader::getDepth);
+      if (reader.peek() != JsonToken.END_DOCUMENT) {
+        throw new IOException("A frame has more than one message");
+      }
+      return genericRequest;
+    }
+  }
+
+  static class GenericRequest {
+    long id;
+    @Nullable String method;
+    // An instance of the request class of the method.
+    @Nullable Object params;
+    // Set when the params cannot be bound to the request class.
+    @Nullable JsonParseException paramsError;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
+
+// Runs the requests on a bounded pool of workers. Each method has a lane that limits how many of
+// its requests run at once and how many wait. A free worker always takes the oldest request of
+// the interactive lanes first, so a burst of background requests, e.g. from a linter, does not
+// delay the completions. A request over the queue limit is rejected right away instead of waiting
+// until it times out.
+class RequestScheduler {
+  private static final Logger LOG = Logger.getInstance(RequestScheduler.class);
+
+  enum Priority {
+    INTERACTIVE,
+    BACKGROUND
+  }
+
+  private final int maxWorkers;
+  private final ThreadFactory threadFactory =
+      new ThreadFactoryBuilder().setNameFormat("ijaas-request-%d").setDaemon(true).build();
+  // All the fields below are guarded by this.
+  private final HashMap<String, Lane> lanes = new HashMap<>();
+  private final List<Lane> lanesByPriority = new ArrayList<>();
+  private final Lane defaultLane;
+  private final List<Thread> workers = new ArrayList<>();
+  private int idleWorkers;
+  private long sequence;
+  private boolean shutdown;
+
+  RequestScheduler(int maxWorkers, int defaultMaxRunning, int defaultMaxQueued) {
+    this.maxWorkers = maxWorkers;
+    defaultLane = newLane(Priority.INTERACTIVE, defaultMaxRunning, defaultMaxQueued);
+  }
+
+  // The limits can be overridden with -Dijaas.maxRunning.<method> and -Dijaas.maxQueued.<method>.
+  synchronized void addLane(String method, Priority priority, int maxRunning, int maxQueued) {
+    lanes.put(
+        method,
+        newLane(
+            priority,
+            Integer.getInteger("ijaas.maxRunning." + method, maxRunning),
+            Integer.getInteger("ijaas.maxQueued." + method, maxQueued)));
+  }
+
+  // Returns false if the lane of the method is full. If the scheduler is shut down before the task
+  // starts, abandon is run instead, so that the caller can answer the request.
+  synchronized boolean trySubmit(@Nullable String method, Runnable task, Runnable abandon) {
+    if (shutdown) {
+      throw new RejectedExecutionException("The scheduler is shut down");
+    }
+    Lane lane = method != null ? lanes.getOrDefault(method, defaultLane) : defaultLane;
+    if (lane.queue.size() >= lane.maxQueued) {
+      return false;
+    }
+    lane.queue.add(new QueuedTask(sequence++, task, abandon));
+    if (idleWorkers == 0 && workers.size() < maxWorkers) {
+      Thread worker = threadFactory.newThread(this::work);
+      workers.add(worker);
+      worker.start();
+    } else {
+      notifyAll();
+    }
+    return true;
+  }
+
+  // Interrupts the running tasks, and abandons the queued ones.
+  void shutdownNow() {
+    List<QueuedTask> abandoned = new ArrayList<>();
+    synchronized (this) {
+      shutdown = true;
+      for (Lane lane : lanesByPriority) {
+        abandoned.addAll(lane.queue);
+        lane.queue.clear();
+      }
+      workers.forEach(Thread::interrupt);
+      notifyAll();
+    }
+    for (QueuedTask task : abandoned) {
+      try {
+        task.abandon.run();
+      } catch (RuntimeException e) {
+        LOG.error("Cannot abandon a request", e);
+      }
+    }
+  }
+
+  private Lane newLane(Priority priority, int maxRunning, int maxQueued) {
+    Lane lane = new Lane(priority, maxRunning, maxQueued);
+    lanesByPriority.add(lane);
+    lanesByPriority.sort(Comparator.comparing(l -> l.priority));
+    return lane;
+  }
+
+  private void work() {
+    while (true) {
+      Lane lane;
+      QueuedTask task;
+      synchronized (this) {
+        while (true) {
+          if (shutdown) {
+            return;
+          }
+          lane = nextLane();
+          if (lane != null) {
+            break;
+          }
+          idleWorkers++;
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          } finally {
+            idleWorkers--;
+          }
+        }
+        task = lane.queue.remove();
+        lane.running++;
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException e) {
+        LOG.error("A request failed", e);
+      } finally {
+        synchronized (this) {
+          lane.running--;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  // The lane with the oldest request that can start, among the ones of the highest priority.
+  @Nullable
+  private Lane nextLane() {
+    Lane next = null;
+    for (Lane lane : lanesByPriority) {
+      if (next != null && next.priority != lane.priority) {
+        break;
+      }
+      if (lane.running < lane.maxRunning
+          && !lane.queue.isEmpty()
+          && (next == null || lane.queue.peek().sequence < next.queue.peek().sequence)) {
+        next = lane;
+      }
+    }
+    return next;
+  }
+
+  private static class Lane {
+    private final Priority priority;
+    private final int maxRunning;
+    private final int maxQueued;
+    private final ArrayDeque<QueuedTask> queue = new ArrayDeque<>();
+    private int running;
+
+    Lane(Priority priority, int maxRunning, int maxQueued) {
+      this.priority = priority;
+      this.maxRunning = maxRunning;
+      this.maxQueued = maxQueued;
+    }
+  }
+
+  private static class QueuedTask {
+    private final long sequence;
+    private final Runnable runnable;
+    private final Runnable abandon;
+
+    QueuedTask(long sequence, Runnable runnable, Runnable abandon) {
+      this.sequence = sequence;
+      this.runnable = runnable;
+      this.abandon = abandon;
+    }
+  }
+}
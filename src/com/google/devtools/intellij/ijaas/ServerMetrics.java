@@ -0,0 +1,37 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The server-wide metrics reported by server_stats.
+public class ServerMetrics {
+  private final ConcurrentHashMap<String, MethodStats> methods = new ConcurrentHashMap<>();
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+  public MethodStats forMethod(String method) {
+    return methods.computeIfAbsent(method, (m) -> new MethodStats());
+  }
+
+  public Map<String, MethodStats> getMethods() {
+    return new TreeMap<>(methods);
+  }
+
+  public AtomicInteger getInFlightRequests() {
+    return inFlightRequests;
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+// Tracks the latest request in flight per connection, method and file. When a newer request for
+// the same file arrives on the same connection, e.g. a completion while typing, the older one is
+// stale and cancelled. The requests of another client editing the same file are left alone.
+class SupersedeTracker {
+  private final ConcurrentHashMap<String, RequestContext> latestRequests =
+      new ConcurrentHashMap<>();
+
+  @Nullable
+  static String key(long connectionId, String method, @Nullable String file) {
+    return file == null ? null : connectionId + "\0" + method + '\0' + file;
+  }
+
+  void register(String key, RequestContext context) {
+    RequestContext previous = latestRequests.put(key, context);
+    if (previous != null) {
+      previous.cancel(RequestCancelledException.SUPERSEDED);
+    }
+  }
+
+  void unregister(String key, RequestContext context) {
+    latestRequests.remove(key, context);
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nullable;
+
+// Appends each request to a JSON Lines trace, so that the slowness that the users report can be
+// reproduced with the replay tool. It is enabled with -Dijaas.trace=<directory>. The trace is
+// trace.jsonl, and it is rotated to trace.1.jsonl, trace.2.jsonl and so on by size. The oldest
+// file over the limit is deleted.
+class TraceRecorder implements Closeable {
+  private static final Logger LOG = Logger.getInstance(TraceRecorder.class);
+
+  private final Codec codec;
+  private final Path directory;
+  private final long maxFileSize;
+  private final int maxFiles;
+  @Nullable private Writer writer;
+  private long fileSize;
+
+  private TraceRecorder(Codec codec, Path directory, long maxFileSize, int maxFiles) {
+    this.codec = codec;
+    this.directory = directory;
+    this.maxFileSize = maxFileSize;
+    this.maxFiles = maxFiles;
+  }
+
+  // Returns null if the trace is not enabled.
+  @Nullable
+  static TraceRecorder create(Codec codec) {
+    String directory = System.getProperty("ijaas.trace");
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+    return new TraceRecorder(
+        codec,
+        Paths.get(directory),
+        Long.getLong("ijaas.traceMaxFileSize", 64L << 20),
+        Math.max(1, Integer.getInteger("ijaas.traceMaxFiles", 5)));
+  }
+
+  // The params are serialized when the request arrives, before the handler sees them.
+  @Nullable
+  String serializeParams(@Nullable Object params) {
+    StringWriter out = new StringWriter();
+    try {
+      codec.write(codec.newJsonWriter(out), params);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Cannot serialize the params", e);
+      return null;
+    }
+    return out.toString();
+  }
+
+  void record(
+      RequestContext context,
+      long startNanos,
+      long endNanos,
+      long responseSize,
+      @Nullable String error) {
+    long arrivalNanos = context.getArrivalNanos();
+    StringWriter line = new StringWriter();
+    try {
+      JsonWriter out = codec.newJsonWriter(line);
+      out.beginObject();
+      // The wall time of the arrival in milliseconds.
+      out.name("time").value(System.currentTimeMillis() - (endNanos - arrivalNanos) / 1_000_000);
+      out.name("id").value(context.getId());
+      out.name("method").value(context.getMethod());
+      String params = context.getTraceParams();
+      out.name("params").jsonValue(params != null ? params : "null");
+      out.name("queue_us").value((startNanos - arrivalNanos) / 1000);
+      out.name("total_us").value((endNanos - arrivalNanos) / 1000);
+      out.name("response_size").value(responseSize);
+      if (error != null) {
+        out.name("error").value(error);
+      }
+      out.endObject();
+      out.flush();
+    } catch (IOException e) {
+      // Not thrown by StringWriter.
+      throw new IllegalStateException(e);
+    }
+    line.write('\n');
+    write(line.toString());
+  }
+
+  private synchronized void write(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    try {
+      if (writer != null && fileSize + bytes.length > maxFileSize) {
+        writer.close();
+        writer = null;
+        rotate();
+      }
+      if (writer == null) {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("trace.jsonl");
+        fileSize = Files.exists(file) ? Files.size(file) : 0;
+        writer =
+            Files.newBufferedWriter(
+                file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+      writer.write(line);
+      // Keep the trace until the last request if the IDE crashes.
+      writer.flush();
+      fileSize += bytes.length;
+    } catch (IOException e) {
+      LOG.warn("Cannot write the trace", e);
+    }
+  }
+
+  private void rotate() throws IOException {
+    Files.deleteIfExists(directory.resolve(fileName(maxFiles - 1)));
+    for (int i = maxFiles - 2; i >= 0; i--) {
+      Path file = directory.resolve(fileName(i));
+      if (Files.exists(file)) {
+        Files.move(file, directory.resolve(fileName(i + 1)), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+
+  private static String fileName(int index) {
+    return index == 0 ? "trace.jsonl" : "trace." + index + ".jsonl";
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// The byte streams of a client connection, over either TCP or a Unix domain socket.
+class Transport implements Closeable {
+  private final Closeable closeable;
+  private final BufferedInputStream in;
+  private final OutputStream out;
+
+  private Transport(Closeable closeable, InputStream in, OutputStream out) {
+    this.closeable = closeable;
+    this.in = new BufferedInputStream(in);
+    this.out = out;
+  }
+
+  static Transport of(Socket socket) throws IOException {
+    try {
+      return new Transport(socket, socket.getInputStream(), socket.getOutputStream());
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  // Channels.newInputStream and newOutputStream are not used, as some runtimes make a write wait
+  // for a blocked read on the same channel. The reads and writes here run concurrently.
+  static Transport of(SocketChannel channel) {
+    InputStream in =
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+          }
+
+          @Override
+          public void close() throws IOException {
+            channel.close();
+          }
+        };
+    OutputStream out =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            channel.close();
+          }
+        };
+    return new Transport(channel, in, out);
+  }
+
+  BufferedInputStream getInputStream() {
+    return in;
+  }
+
+  OutputStream getOutputStream() {
+    return out;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeable.close();
+  }
+}
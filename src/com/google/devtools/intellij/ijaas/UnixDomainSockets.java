@@ -0,0 +1,110 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+
+// Unix domain sockets are available since Java 16. They are looked up reflectively as the plugin
+// targets older runtimes, too.
+class UnixDomainSockets {
+  private UnixDomainSockets() {}
+
+  private static boolean isSupported() {
+    try {
+      StandardProtocolFamily.valueOf("UNIX");
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch (IllegalArgumentException | ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  // Returns null if the runtime does not support Unix domain sockets. A file left at the path,
+  // e.g. by a crash, is replaced, but a socket that another server is listening on is not.
+  @Nullable
+  static ServerSocketChannel bind(Path path) throws IOException {
+    if (!isSupported()) {
+      return null;
+    }
+    ServerSocketChannel channel;
+    SocketAddress address;
+    try {
+      channel = open(ServerSocketChannel.class);
+      address =
+          (SocketAddress)
+              Class.forName("java.net.UnixDomainSocketAddress")
+                  .getMethod("of", Path.class)
+                  .invoke(null, path);
+    } catch (InvocationTargetException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      return null;
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+    try {
+      Files.createDirectories(path.toAbsolutePath().getParent());
+      if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        if (!isStale(address)) {
+          throw new BindException("Another server is listening on " + path);
+        }
+        Files.deleteIfExists(path);
+      }
+      channel.bind(address);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // Whether nothing is listening on the socket file. Only a refused connection tells that it is
+  // left behind; any other failure is reported.
+  private static boolean isStale(SocketAddress address) throws IOException {
+    SocketChannel client;
+    try {
+      client = open(SocketChannel.class);
+    } catch (InvocationTargetException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Cannot open a socket", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Cannot open a socket", e);
+    }
+    try (SocketChannel c = client) {
+      c.connect(address);
+      return false;
+    } catch (ConnectException e) {
+      return true;
+    }
+  }
+
+  private static <T> T open(Class<T> channelClass) throws ReflectiveOperationException {
+    return channelClass.cast(
+        channelClass
+            .getMethod("open", ProtocolFamily.class)
+            .invoke(null, StandardProtocolFamily.valueOf("UNIX")));
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.Completion;
+import com.intellij.openapi.project.Project;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+// Caches the completions while the user keeps typing the same word. The completions at an offset
+// depend on the text before it and on the rest of the project. The former is a part of the key,
+// and the latter is checked with the PSI modification count. An entry holds the completions for
+// a prefix, so a request with a longer prefix is answered by filtering them.
+public class CompletionCache {
+  private final Cache<String, Entry> cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public CompletionCache(int maxSize) {
+    cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  // The engines are cached separately, so that their results can be compared.
+  static String key(String file, CharSequence text, int offset, boolean headless) {
+    String textHash =
+        Hashing.murmur3_128().hashUnencodedChars(text.subSequence(0, offset)).toString();
+    return file + '\0' + offset + '\0' + (headless ? "headless" : "editor") + '\0' + textHash;
+  }
+
+  @Nullable
+  List<Completion> get(String key, long modificationCount, String prefix) {
+    Entry entry = cache.getIfPresent(key);
+    if (entry == null
+        || entry.modificationCount != modificationCount
+        || !prefix.startsWith(entry.prefix)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    List<Completion> ret = new ArrayList<>();
+    for (Completion c : entry.completions) {
+      if (c.word.startsWith(prefix)) {
+        ret.add(c);
+      }
+    }
+    return ret;
+  }
+
+  void put(
+      String key,
+      Project project,
+      long modificationCount,
+      String prefix,
+      List<Completion> completions) {
+    cache.put(key, new Entry(project, modificationCount, prefix, new ArrayList<>(completions)));
+  }
+
+  // Called when the project is closed. The entries of the other projects are kept.
+  public void invalidate(Project project) {
+    cache.asMap().values().removeIf(entry -> entry.project == project);
+  }
+
+  public long getSize() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static class Entry {
+    private final Project project;
+    private final long modificationCount;
+    private final String prefix;
+    private final List<Completion> completions;
+
+    Entry(Project project, long modificationCount, String prefix, List<Completion> completions) {
+      this.project = project;
+      this.modificationCount = modificationCount;
+      this.prefix = prefix;
+      this.completions = completions;
+    }
+  }
+}
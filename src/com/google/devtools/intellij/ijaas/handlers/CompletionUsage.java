@@ -0,0 +1,49 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Counts the completions that the user accepted in each project, so that the relevance ranking
+// puts them first the next time. The counts live as long as the project is open. A project keeps
+// at most maxWords words, and the new words are not counted after that.
+public class CompletionUsage {
+  private static final Key<ConcurrentHashMap<String, Integer>> KEY =
+      Key.create("ijaas.completionUsage");
+
+  private final int maxWords;
+
+  public CompletionUsage(int maxWords) {
+    this.maxWords = maxWords;
+  }
+
+  void record(Project project, String word) {
+    ConcurrentHashMap<String, Integer> counts =
+        project.putUserDataIfAbsent(KEY, new ConcurrentHashMap<>());
+    if (counts.size() >= maxWords && !counts.containsKey(word)) {
+      return;
+    }
+    counts.merge(word, 1, Integer::sum);
+  }
+
+  // The accepted words and their counts. The map is not copied.
+  Map<String, Integer> getCounts(Project project) {
+    Map<String, Integer> counts = project.getUserData(KEY);
+    return counts != null ? counts : Collections.emptyMap();
+  }
+}
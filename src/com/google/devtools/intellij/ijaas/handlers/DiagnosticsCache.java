@@ -0,0 +1,299 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import com.intellij.ProjectTopics;
+import com.intellij.codeInspection.InspectionProfile;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.profile.ProfileChangeAdapter;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+
+// Caches the problems of a file, so that saving a file without a change that matters does not run
+// the inspections again. A result is reused while
+//
+// * the content of the file is the same except for the trailing whitespace,
+// * the inspection profile and the project roots are not changed, and
+// * no PSI in the project other than the file itself is changed, as the other files are the
+//   dependencies.
+//
+// The changes of the file itself are excluded from the last one, as the file is reloaded from the
+// disk on every save. Its content is checked by the first one.
+public class DiagnosticsCache {
+  private final Cache<String, Entry> cache;
+  private final ConcurrentHashMap<Project, ProjectState> projects = new ConcurrentHashMap<>();
+  private final AtomicLong resultIds = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public DiagnosticsCache(int maxSize) {
+    cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  // Takes the stamp before the file is refreshed from the disk. If anything else changes while
+  // the file is analyzed, the result is not reused.
+  Stamp stamp(Project project, VirtualFile vf, byte[] content) {
+    ProjectState state = getState(project);
+    AtomicLong ownChanges = state.filePsiChanges.computeIfAbsent(vf, f -> new AtomicLong());
+    return new Stamp(
+        hash(content), state.configVersion.get(), state.psiChanges.get() - ownChanges.get());
+  }
+
+  @Nullable
+  Result get(String file, Stamp stamp) {
+    Entry entry = cache.getIfPresent(FileUtil.toSystemIndependentName(file));
+    if (entry == null || !entry.stamp.equals(stamp)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.result;
+  }
+
+  // Returns the last result of the file if it has the ID, regardless of whether it is still valid.
+  @Nullable
+  Result getPrevious(String file, String resultId) {
+    Entry entry = cache.getIfPresent(FileUtil.toSystemIndependentName(file));
+    return entry != null && entry.result.id.equals(resultId) ? entry.result : null;
+  }
+
+  Result put(String file, Project project, Stamp stamp, List<Problem> problems) {
+    String path = FileUtil.toSystemIndependentName(file);
+    Entry previous = cache.getIfPresent(path);
+    // Keep the ID when nothing is changed, so that a client can tell it without comparing.
+    Result result =
+        previous != null && previous.result.problems.equals(problems)
+            ? previous.result
+            : new Result(Long.toString(resultIds.incrementAndGet(), 36), problems);
+    cache.put(path, new Entry(project, stamp, result));
+    return result;
+  }
+
+  // Called when the project is closed. The entries of the other projects are kept.
+  public void invalidate(Project project) {
+    cache.asMap().values().removeIf(entry -> entry.project == project);
+  }
+
+  public long getSize() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  static String hash(byte[] content) {
+    // The bytes are hashed as they are, except that the whitespace at the end of each line is
+    // skipped. The whitespace characters are ASCII, so this does not depend on the encoding.
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    int lineStart = 0;
+    for (int i = 0; i <= content.length; i++) {
+      if (i == content.length || content[i] == '\n') {
+        int lineEnd = i;
+        while (lineEnd > lineStart && isWhitespace(content[lineEnd - 1])) {
+          lineEnd--;
+        }
+        hasher.putBytes(content, lineStart, lineEnd - lineStart);
+        if (i < content.length) {
+          hasher.putByte((byte) '\n');
+        }
+        lineStart = i + 1;
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+  }
+
+  private ProjectState getState(Project project) {
+    ProjectState state = projects.get(project);
+    if (state != null) {
+      return state;
+    }
+    state = new ProjectState();
+    ProjectState previous = projects.putIfAbsent(project, state);
+    if (previous != null) {
+      return previous;
+    }
+    Disposer.register(project, () -> projects.remove(project));
+    subscribe(project, state);
+    return state;
+  }
+
+  private void subscribe(Project project, ProjectState state) {
+    PsiManager.getInstance(project)
+        .addPsiTreeChangeListener(
+            new PsiTreeChangeAdapter() {
+              @Override
+              public void childAdded(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+
+              @Override
+              public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+
+              @Override
+              public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+
+              @Override
+              public void childMoved(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+
+              @Override
+              public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+
+              @Override
+              public void propertyChanged(@NotNull PsiTreeChangeEvent event) {
+                psiChanged(state, event);
+              }
+            },
+            project);
+    project
+        .getMessageBus()
+        .connect(project)
+        .subscribe(
+            ProfileChangeAdapter.TOPIC,
+            new ProfileChangeAdapter() {
+              @Override
+              public void profileChanged(@NotNull InspectionProfile profile) {
+                state.configVersion.incrementAndGet();
+              }
+
+              @Override
+              public void profileActivated(
+                  @Nullable InspectionProfile oldProfile, @Nullable InspectionProfile profile) {
+                state.configVersion.incrementAndGet();
+              }
+            });
+    project
+        .getMessageBus()
+        .connect(project)
+        .subscribe(
+            ProjectTopics.PROJECT_ROOTS,
+            new ModuleRootListener() {
+              @Override
+              public void rootsChanged(@NotNull ModuleRootEvent event) {
+                state.configVersion.incrementAndGet();
+              }
+            });
+  }
+
+  private static void psiChanged(ProjectState state, PsiTreeChangeEvent event) {
+    PsiFile psiFile = event.getFile();
+    if (psiFile != null && !psiFile.isPhysical()) {
+      // E.g. the documents opened with java_did_open. The other files do not depend on them.
+      return;
+    }
+    state.psiChanges.incrementAndGet();
+    VirtualFile vf = psiFile != null ? psiFile.getVirtualFile() : null;
+    if (vf != null) {
+      AtomicLong ownChanges = state.filePsiChanges.get(vf);
+      if (ownChanges != null) {
+        ownChanges.incrementAndGet();
+      }
+    }
+  }
+
+  private static class ProjectState {
+    // The PSI changes of the physical files in the project, and of each file that has been
+    // analyzed.
+    private final AtomicLong psiChanges = new AtomicLong();
+    private final ConcurrentHashMap<VirtualFile, AtomicLong> filePsiChanges =
+        new ConcurrentHashMap<>();
+    // Bumped when a profile or the roots of the project are changed.
+    private final AtomicLong configVersion = new AtomicLong();
+  }
+
+  static class Stamp {
+    private final String contentHash;
+    private final long configVersion;
+    // The PSI changes except for the file itself.
+    private final long dependencyChanges;
+
+    Stamp(String contentHash, long configVersion, long dependencyChanges) {
+      this.contentHash = contentHash;
+      this.configVersion = configVersion;
+      this.dependencyChanges = dependencyChanges;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Stamp)) {
+        return false;
+      }
+      Stamp that = (Stamp) o;
+      return contentHash.equals(that.contentHash)
+          && configVersion == that.configVersion
+          && dependencyChanges == that.dependencyChanges;
+    }
+
+    @Override
+    public int hashCode() {
+      return contentHash.hashCode() * 31 + Long.hashCode(configVersion + dependencyChanges);
+    }
+  }
+
+  static class Result {
+    final String id;
+    final List<Problem> problems;
+
+    Result(String id, List<Problem> problems) {
+      this.id = id;
+      this.problems = new ArrayList<>(problems);
+    }
+  }
+
+  private static class Entry {
+    private final Project project;
+    private final Stamp stamp;
+    private final Result result;
+
+    Entry(Project project, Stamp stamp, Result result) {
+      this.project = project;
+      this.stamp = stamp;
+      this.result = result;
+    }
+  }
+}
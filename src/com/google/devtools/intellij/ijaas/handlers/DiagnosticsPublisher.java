@@ -0,0 +1,205 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.Connection;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Response;
+import com.google.gson.annotations.SerializedName;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import org.jetbrains.annotations.NotNull;
+
+// Computes the problems of a file in the background and pushes them to the connections with a
+// diagnostics notification, so that the clients do not block on a save. A connection subscribes
+// to a file with java_src_changed, and is notified again when the file is changed outside of it.
+//
+// The runs for a file are coalesced. A change while the file is analyzed runs it once more after
+// that. A connection is notified only when its result has changed.
+public class DiagnosticsPublisher {
+  private static final Logger LOG = Logger.getInstance(DiagnosticsPublisher.class);
+
+  private final JavaSrcUpdateHandler srcUpdateHandler;
+  private final Function<Connection, RequestContext> contextFactory;
+  private final ExecutorService executor;
+  // The subscribed connections of each file, and the result ID they have. Guarded by this.
+  private final HashMap<String, HashMap<Connection, String>> subscriptions = new HashMap<>();
+  // The files being analyzed, and the ones changed while being analyzed. Guarded by this.
+  private final HashSet<String> running = new HashSet<>();
+  private final HashSet<String> changedWhileRunning = new HashSet<>();
+
+  public DiagnosticsPublisher(
+      JavaSrcUpdateHandler srcUpdateHandler,
+      Function<Connection, RequestContext> contextFactory,
+      int parallelism,
+      Disposable parentDisposable) {
+    this.srcUpdateHandler = srcUpdateHandler;
+    this.contextFactory = contextFactory;
+    executor =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("ijaas diagnostics", parallelism);
+    ApplicationManager.getApplication()
+        .getMessageBus()
+        .connect(parentDisposable)
+        .subscribe(
+            VirtualFileManager.VFS_CHANGES,
+            new BulkFileListener() {
+              @Override
+              public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                  if (event instanceof VFileContentChangeEvent) {
+                    fileChanged(event.getPath());
+                  }
+                }
+              }
+            });
+  }
+
+  // The client has the result of previousResultId. The problems are sent as the difference from
+  // it.
+  public void subscribe(Connection connection, String file, @Nullable String previousResultId) {
+    String path = FileUtil.toSystemIndependentName(file);
+    synchronized (this) {
+      subscriptions.computeIfAbsent(path, p -> new HashMap<>()).put(connection, previousResultId);
+    }
+    schedule(path);
+  }
+
+  public synchronized void unsubscribe(Connection connection) {
+    Iterator<HashMap<Connection, String>> it = subscriptions.values().iterator();
+    while (it.hasNext()) {
+      HashMap<Connection, String> connections = it.next();
+      connections.remove(connection);
+      if (connections.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  // Stops the runs in the background. Called when the server is disposed.
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void fileChanged(String path) {
+    synchronized (this) {
+      if (!subscriptions.containsKey(path)) {
+        return;
+      }
+    }
+    schedule(path);
+  }
+
+  private void schedule(String path) {
+    synchronized (this) {
+      if (!running.add(path)) {
+        changedWhileRunning.add(path);
+        return;
+      }
+    }
+    executor.execute(
+        () -> {
+          do {
+            publish(path);
+          } while (shouldRunAgain(path));
+        });
+  }
+
+  private synchronized boolean shouldRunAgain(String path) {
+    if (changedWhileRunning.remove(path)) {
+      return true;
+    }
+    running.remove(path);
+    return false;
+  }
+
+  private void publish(String path) {
+    Map<Connection, String> connections;
+    synchronized (this) {
+      HashMap<Connection, String> subscribed = subscriptions.get(path);
+      if (subscribed == null) {
+        return;
+      }
+      connections = new HashMap<>(subscribed);
+    }
+    // The file is analyzed for the first connection. The others get the cached result.
+    boolean failed = false;
+    for (Map.Entry<Connection, String> entry : connections.entrySet()) {
+      Connection connection = entry.getKey();
+      String previousResultId = entry.getValue();
+      Request request = new Request();
+      request.file = path;
+      request.previousResultId = previousResultId;
+      Response response;
+      try {
+        response = srcUpdateHandler.handleRequest(request, contextFactory.apply(connection));
+      } catch (RuntimeException e) {
+        // A failure for one connection, e.g. a timeout, should not skip the others. Log it once
+        // per run, as the file itself may not be analyzable.
+        if (!failed) {
+          LOG.info("Cannot update the diagnostics of " + path, e);
+          failed = true;
+        }
+        continue;
+      }
+      if (response.resultId.equals(previousResultId)) {
+        continue;
+      }
+      synchronized (this) {
+        HashMap<Connection, String> subscribed = subscriptions.get(path);
+        if (subscribed == null || !subscribed.containsKey(connection)) {
+          continue;
+        }
+        subscribed.put(connection, response.resultId);
+      }
+      connection.notify("diagnostics", new Diagnostics(path, response));
+    }
+  }
+
+  private static class Diagnostics {
+    final String file;
+
+    @SerializedName("result_id")
+    final String resultId;
+
+    @Nullable final List<Problem> problems;
+    @Nullable final List<Problem> added;
+    @Nullable final List<Problem> removed;
+
+    Diagnostics(String file, Response response) {
+      this.file = file;
+      this.resultId = response.resultId;
+      this.problems = response.problems;
+      this.added = response.added;
+      this.removed = response.removed;
+    }
+  }
+}
@@ -14,11 +14,22 @@
 package com.google.devtools.intellij.ijaas.handlers;
 
 import com.google.devtools.intellij.ijaas.IjaasHandler;
+import com.google.devtools.intellij.ijaas.RequestContext;
 import com.google.gson.JsonElement;
 
-public class EchoHandler implements IjaasHandler {
+public class EchoHandler implements IjaasHandler<JsonElement, JsonElement> {
   @Override
-  public JsonElement handle(JsonElement request) {
+  public Class<JsonElement> requestClass() {
+    return JsonElement.class;
+  }
+
+  @Override
+  public Class<JsonElement> responseClass() {
+    return JsonElement.class;
+  }
+
+  @Override
+  public JsonElement handleRequest(JsonElement request, RequestContext context) {
     return request;
   }
 }
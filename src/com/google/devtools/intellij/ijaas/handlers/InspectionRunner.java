@@ -0,0 +1,163 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.Histogram;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import com.intellij.codeInspection.GlobalInspectionContext;
+import com.intellij.codeInspection.InspectionEngine;
+import com.intellij.codeInspection.InspectionManager;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ex.InspectionToolWrapper;
+import com.intellij.codeInspection.ex.Tools;
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.profile.codeInspection.InspectionProfileManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the enabled inspection tools on a file in parallel. Each tool runs in its own read action
+// on a bounded pool, under a progress indicator that is cancelled with the request. The wall time
+// of each tool is kept, so that the slow ones can be found and disabled.
+public class InspectionRunner {
+  private static final Logger LOG = Logger.getInstance(InspectionRunner.class);
+
+  private final ExecutorService executor;
+  private final long slowInspectionNanos =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("ijaas.slowInspectionMs", 1000));
+  private final ConcurrentHashMap<String, Histogram> toolTimes = new ConcurrentHashMap<>();
+
+  public InspectionRunner(int parallelism) {
+    executor =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("ijaas inspections", parallelism);
+  }
+
+  // Resolves the enabled tools and creates the global context once, so that they can be shared by
+  // the files analyzed together.
+  Session newSession(Project project) {
+    Ref<Session> sessionRef = new Ref<>();
+    ApplicationManager.getApplication()
+        .runReadAction(
+            () ->
+                sessionRef.set(
+                    new Session(
+                        InspectionProfileManager.getInstance(project)
+                            .getCurrentProfile()
+                            .getAllEnabledInspectionTools(project),
+                        InspectionManager.getInstance(project).createNewGlobalContext(false))));
+    return sessionRef.get();
+  }
+
+  List<Problem> run(Session session, PsiFile psiFile, RequestContext context) {
+    ProgressIndicator parent = ProgressManager.getGlobalProgressIndicator();
+    List<ProgressIndicator> indicators = new ArrayList<>();
+    List<Future<List<Problem>>> futures = new ArrayList<>();
+    try {
+      for (Tools tools : session.toolsList) {
+        // An indicator for each task, as an indicator is started and stopped by its thread.
+        ProgressIndicator indicator =
+            parent != null ? new SensitiveProgressWrapper(parent) : new EmptyProgressIndicator();
+        indicators.add(indicator);
+        futures.add(
+            executor.submit(
+                () -> runTool(tools, psiFile, session.globalContext, indicator, context)));
+      }
+      List<Problem> problems = new ArrayList<>();
+      for (Future<List<Problem>> future : futures) {
+        problems.addAll(ProgressIndicatorUtils.awaitWithCheckCanceled(future));
+      }
+      return problems;
+    } finally {
+      // Stop the rest when the request is cancelled or a tool fails.
+      futures.forEach(future -> future.cancel(false));
+      indicators.forEach(ProgressIndicator::cancel);
+    }
+  }
+
+  private List<Problem> runTool(
+      Tools tools,
+      PsiFile psiFile,
+      GlobalInspectionContext globalContext,
+      ProgressIndicator indicator,
+      RequestContext context) {
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      // A pending write action, e.g. the VFS refresh of the next java_src_update, cancels the
+      // tool instead of waiting for it. The tool is restarted after the write action.
+      return ProgressManager.getInstance()
+          .runProcess(
+              () ->
+                  ReadAction.nonBlocking(
+                          () -> {
+                            attempts.incrementAndGet();
+                            InspectionToolWrapper<?, ?> tool = tools.getInspectionTool(psiFile);
+                            long startNanos = System.nanoTime();
+                            List<ProblemDescriptor> descs =
+                                InspectionEngine.runInspectionOnFile(psiFile, tool, globalContext);
+                            recordTime(tool, psiFile, System.nanoTime() - startNanos);
+                            List<Problem> problems = new ArrayList<>();
+                            for (ProblemDescriptor desc : descs) {
+                              problems.add(JavaSrcUpdateHandler.toProblem(desc));
+                            }
+                            return problems;
+                          })
+                      .executeSynchronously(),
+              indicator);
+    } finally {
+      context.recordNonBlockingReadAction(Math.max(0, attempts.get() - 1));
+    }
+  }
+
+  private void recordTime(InspectionToolWrapper<?, ?> tool, PsiFile psiFile, long nanos) {
+    toolTimes.computeIfAbsent(tool.getShortName(), name -> new Histogram()).recordNanos(nanos);
+    if (nanos >= slowInspectionNanos) {
+      LOG.info(
+          String.format(
+              "Inspection %s took %d ms on %s",
+              tool.getShortName(), TimeUnit.NANOSECONDS.toMillis(nanos), psiFile.getName()));
+    }
+  }
+
+  // The wall time of each tool by its short name.
+  public Map<String, Histogram> getToolTimes() {
+    return toolTimes;
+  }
+
+  static class Session {
+    private final List<Tools> toolsList;
+    private final GlobalInspectionContext globalContext;
+
+    private Session(List<Tools> toolsList, GlobalInspectionContext globalContext) {
+      this.toolsList = toolsList;
+      this.globalContext = globalContext;
+    }
+  }
+}
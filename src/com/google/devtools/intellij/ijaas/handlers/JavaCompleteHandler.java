@@ -13,15 +13,26 @@
 // limitations under the License.
 package com.google.devtools.intellij.ijaas.handlers;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.DocumentStore;
+import com.google.devtools.intellij.ijaas.DocumentStore.OpenDocument;
+import com.google.devtools.intellij.ijaas.EditorPool;
+import com.google.devtools.intellij.ijaas.Histogram;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestContext;
 import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.Request;
 import com.google.devtools.intellij.ijaas.handlers.JavaCompleteHandler.Response;
 import com.intellij.codeInsight.completion.CodeCompletionHandlerBase;
+import com.intellij.codeInsight.completion.CompletionParameters;
 import com.intellij.codeInsight.completion.CompletionPhase;
+import com.intellij.codeInsight.completion.CompletionProcess;
 import com.intellij.codeInsight.completion.CompletionProgressIndicator;
+import com.intellij.codeInsight.completion.CompletionService;
 import com.intellij.codeInsight.completion.CompletionType;
+import com.intellij.codeInsight.completion.CompletionUtil;
 import com.intellij.codeInsight.completion.impl.CompletionServiceImpl;
 import com.intellij.codeInsight.lookup.LookupElement;
 import com.intellij.codeInsight.lookup.LookupElementPresentation;
@@ -30,14 +41,15 @@ import com.intellij.lang.java.JavaLanguage;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.impl.ImaginaryEditor;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectLocator;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
-import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.openapi.vfs.LocalFileSystem;
-import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
@@ -46,42 +58,135 @@ import com.intellij.psi.PsiFileFactory;
 import com.intellij.psi.PsiKeyword;
 import com.intellij.psi.PsiMethod;
 import com.intellij.psi.PsiVariable;
-import java.io.File;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 public class JavaCompleteHandler extends BaseHandler<Request, Response> {
+  private static final long PARTIAL_RESULT_INTERVAL_MS = 50;
+
+  private final ProjectResolver projectResolver;
+  private final DocumentStore documents;
+  private final EditorPool editorPool;
+  private final CompletionCache completionCache;
+  private final CompletionUsage completionUsage;
+  // The time to compute the completions that are not cached, by the engine.
+  private final Histogram editorTimes = new Histogram();
+  private final Histogram headlessTimes = new Histogram();
+
+  public JavaCompleteHandler(
+      ProjectResolver projectResolver,
+      DocumentStore documents,
+      EditorPool editorPool,
+      CompletionCache completionCache,
+      CompletionUsage completionUsage) {
+    this.projectResolver = projectResolver;
+    this.documents = documents;
+    this.editorPool = editorPool;
+    this.completionCache = completionCache;
+    this.completionUsage = completionUsage;
+  }
+
   @Override
-  protected Class<Request> requestClass() {
+  public Class<Request> requestClass() {
     return Request.class;
   }
 
   @Override
-  protected Response handle(Request request) {
-    Project project = findProject(request.file);
-    if (project == null) {
-      throw new RuntimeException("Cannot find the target project");
-    }
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  public String getFile(Request request) {
+    return request.file;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
     SettableFuture<Response> responseFuture = SettableFuture.create();
     Application application = ApplicationManager.getApplication();
-    Ref<PsiFile> psiFileRef = new Ref<>();
-    application.runReadAction(
-        () -> {
-          psiFileRef.set(
-              PsiFileFactory.getInstance(project)
-                  .createFileFromText(JavaLanguage.INSTANCE, request.text));
-        });
-    PsiFile psiFile = psiFileRef.get();
+    // The editors for the opened documents are pooled. The others are used only once.
+    boolean pooled = request.text == null;
+    String prefix = Strings.nullToEmpty(request.prefix);
+    Project project;
+    CharSequence text;
+    OpenDocument openDocument;
+    if (request.text != null) {
+      project = projectResolver.resolve(request.file);
+      if (project == null) {
+        throw new RuntimeException("Cannot find the target project");
+      }
+      text = request.text;
+      openDocument = null;
+    } else {
+      openDocument = documents.get(request.file, request.version);
+      project = openDocument.getProject();
+      text = openDocument.getDocument().getImmutableCharSequence();
+    }
+    if (request.offset < 0 || request.offset > text.length()) {
+      throw new RuntimeException("The offset is out of the text");
+    }
+    // The warm-up text is not the user's, so the accepted words are not looked up for it.
+    Ordering<Completion> ordering =
+        request.warmup ? new CompletionOrdering() : getOrdering(request.ranking, project);
+
+    String cacheKey = CompletionCache.key(request.file, text, request.offset, request.headless);
+    long modificationCount = PsiModificationTracker.getInstance(project).getModificationCount();
+    List<Completion> cached =
+        request.warmup ? null : completionCache.get(cacheKey, modificationCount, prefix);
+    if (cached != null) {
+      Response response = new Response();
+      response.completions.addAll(cached);
+      return sortAndLimit(response, request, ordering);
+    }
+
+    PsiFile psiFile;
+    if (openDocument != null) {
+      psiFile = openDocument.getPsiFile();
+    } else {
+      Ref<PsiFile> psiFileRef = new Ref<>();
+      runReadAction(
+          context,
+          () -> {
+            psiFileRef.set(
+                PsiFileFactory.getInstance(project)
+                    .createFileFromText(JavaLanguage.INSTANCE, request.text));
+          });
+      psiFile = psiFileRef.get();
+    }
 
-    application.invokeAndWait(
+    long startNanos = System.nanoTime();
+    if (request.headless) {
+      Response response = completeHeadless(context, project, psiFile, text, request.offset, prefix);
+      if (!request.warmup) {
+        headlessTimes.recordNanos(System.nanoTime() - startNanos);
+        completionCache.put(cacheKey, project, modificationCount, prefix, response.completions);
+      }
+      return sortAndLimit(response, request, ordering);
+    }
+
+    Ref<Editor> editorRef = new Ref<>();
+    invokeAndWait(
+        context,
         () -> {
+          Document document = PsiDocumentManager.getInstance(project).getDocument(psiFile);
           Editor editor =
-              EditorFactory.getInstance()
-                  .createEditor(
-                      PsiDocumentManager.getInstance(project).getDocument(psiFile), project);
+              pooled
+                  ? editorPool.acquire(project, document)
+                  : EditorFactory.getInstance().createEditor(document, project);
+          editorRef.set(editor);
           editor.getCaretModel().moveToOffset(request.offset);
           CommandProcessor.getInstance()
               .executeCommand(
@@ -96,41 +201,32 @@ public class JavaCompleteHandler extends BaseHandler<Request, Response> {
                                 new CompletionPhase.ItemsCalculated(indicator));
                             Response response = new Response();
                             LookupImpl lookup = indicator.getLookup();
-                            for (LookupElement item : lookup.getItems()) {
-                              PsiElement psi = item.getPsiElement();
-                              if (psi == null) {
-                                continue;
+                            List<LookupElement> items = lookup.getItems();
+                            // The adjacent items with the same weights are in the same group.
+                            Map<LookupElement, List<Pair<String, Object>>> weights =
+                                lookup.getRelevanceObjects(items, false);
+                            List<Pair<String, Object>> previousWeights = null;
+                            int weigherRank = -1;
+                            for (LookupElement item : items) {
+                              List<Pair<String, Object>> itemWeights = weights.get(item);
+                              if (weigherRank < 0
+                                  || itemWeights == null
+                                  || !itemWeights.equals(previousWeights)) {
+                                weigherRank++;
                               }
-                              Completion c = new Completion();
-                              LookupElementPresentation presentation =
-                                  new LookupElementPresentation();
-                              item.renderElement(presentation);
-                              c.word =
-                                  item.getLookupString().substring(lookup.getPrefixLength(item));
-                              if (psi instanceof PsiMethod) {
-                                PsiMethod m = (PsiMethod) psi;
-                                if (m.getParameterList().getParametersCount() == 0) {
-                                  c.word += "()";
-                                } else {
-                                  c.word += '(';
-                                }
-                                c.menu =
-                                    presentation.getTypeText() + " - " + presentation.getTailText();
-                                c.kind = Completion.FUNCTION;
-                              } else if (psi instanceof PsiKeyword) {
-                                c.kind = Completion.KEYWORD;
-                              } else if (psi instanceof PsiClass) {
-                                c.menu = presentation.getTailText();
-                                c.kind = Completion.TYPE;
-                              } else if (psi instanceof PsiVariable) {
-                                c.menu = presentation.getTypeText();
-                                c.kind = Completion.VARIABLE;
-                              } else {
-                                c.menu = psi.getClass().getSimpleName();
-                                c.kind = "";
+                              previousWeights = itemWeights;
+                              Completion c =
+                                  toCompletion(item, lookup.getPrefixLength(item), prefix);
+                              if (c != null) {
+                                c.rank = response.completions.size();
+                                c.weigherRank = weigherRank;
+                                response.completions.add(c);
                               }
-                              response.completions.add(c);
                             }
+                            // Close the lookup so that the next completion on a pooled editor
+                            // starts from scratch.
+                            lookup.hideLookup(true);
+                            CompletionServiceImpl.setCompletionPhase(CompletionPhase.NoCompletion);
                             responseFuture.set(response);
                           }
                         };
@@ -139,47 +235,300 @@ public class JavaCompleteHandler extends BaseHandler<Request, Response> {
                   null,
                   null);
         });
+    // Stop the completion process in the background when the request is cancelled or
+    // superseded. Otherwise it keeps running for a result that nobody waits for.
+    context.onCancel(
+        () ->
+            application.invokeLater(
+                () -> {
+                  CompletionProgressIndicator indicator =
+                      CompletionServiceImpl.getCurrentCompletionProgressIndicator();
+                  if (indicator != null && indicator.getEditor() == editorRef.get()) {
+                    indicator.closeAndFinish(true);
+                  }
+                }));
+    ScheduledFuture<?> partialResults = null;
+    if (request.stream) {
+      PartialResultSender sender =
+          new PartialResultSender(editorRef.get(), prefix, request.limit, context);
+      partialResults =
+          AppExecutorUtil.getAppScheduledExecutorService()
+              .scheduleWithFixedDelay(
+                  () ->
+                      application.invokeLater(
+                          () -> {
+                            if (!responseFuture.isDone()) {
+                              sender.sendNewItems();
+                            }
+                          }),
+                  PARTIAL_RESULT_INTERVAL_MS,
+                  PARTIAL_RESULT_INTERVAL_MS,
+                  TimeUnit.MILLISECONDS);
+    }
     try {
-      Response response = responseFuture.get();
-      Collections.sort(response.completions, new CompletionOrdering());
-      return response;
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new RuntimeException(e);
+      // Unlike Future#get, this gives up when the request's progress indicator is cancelled.
+      Response response = ProgressIndicatorUtils.awaitWithCheckCanceled(responseFuture);
+      if (!request.warmup) {
+        editorTimes.recordNanos(System.nanoTime() - startNanos);
+        completionCache.put(cacheKey, project, modificationCount, prefix, response.completions);
+      }
+      return sortAndLimit(response, request, ordering);
+    } finally {
+      if (partialResults != null) {
+        partialResults.cancel(false);
+      }
+      Editor editor = editorRef.get();
+      if (!pooled && editor != null) {
+        application.invokeLater(
+            () -> {
+              if (!editor.isDisposed()) {
+                EditorFactory.getInstance().releaseEditor(editor);
+              }
+            });
+      }
     }
   }
 
-  @Nullable
-  private Project findProject(String file) {
-    LocalFileSystem localFileSystem = LocalFileSystem.getInstance();
-    ProjectLocator projectLocator = ProjectLocator.getInstance();
-    AtomicReference<Project> ret = new AtomicReference<>();
-    FileUtil.processFilesRecursively(
-        new File(file),
-        (f) -> {
-          VirtualFile vf = localFileSystem.findFileByIoFile(f);
-          if (vf != null) {
-            ret.set(projectLocator.guessProjectForFile(vf));
-            return false;
+  // Runs the completion contributors directly in a background read action, without EDT or a real
+  // editor. As the editor-based completion does, the contributors see a copy of the file with the
+  // dummy identifier inserted at the offset.
+  private static Response completeHeadless(
+      RequestContext context,
+      Project project,
+      PsiFile originalFile,
+      CharSequence text,
+      int offset,
+      String prefix) {
+    return computeInNonBlockingReadAction(
+        context,
+        () -> {
+          String copyText =
+              new StringBuilder()
+                  .append(text, 0, offset)
+                  .append(CompletionUtil.DUMMY_IDENTIFIER_TRIMMED)
+                  .append(text, offset, text.length())
+                  .toString();
+          PsiFile copy =
+              PsiFileFactory.getInstance(project)
+                  .createFileFromText(
+                      originalFile.getName(), originalFile.getLanguage(), copyText, false, true);
+          if (copy instanceof PsiFileImpl) {
+            ((PsiFileImpl) copy).setOriginalFile(originalFile);
+          }
+          PsiElement position = copy.findElementAt(offset);
+          Document document = PsiDocumentManager.getInstance(project).getDocument(originalFile);
+          if (position == null || document == null) {
+            throw new RuntimeException("Cannot find the completion position");
           }
-          return true;
+          Editor editor = new ImaginaryEditor(project, document);
+          editor.getCaretModel().moveToOffset(offset);
+          Response response = new Response();
+          Set<String> seen = new HashSet<>();
+          CompletionService.getCompletionService()
+              .performCompletion(
+                  newCompletionParameters(position, originalFile, offset, editor),
+                  result -> {
+                    Completion c =
+                        toCompletion(
+                            result.getLookupElement(),
+                            result.getPrefixMatcher().getPrefix().length(),
+                            prefix);
+                    // Some elements are offered by more than one contributor.
+                    if (c != null && seen.add(c.word + '\0' + c.menu)) {
+                      // The items are not weighed here, so each is a group of its own.
+                      c.rank = response.completions.size();
+                      c.weigherRank = c.rank;
+                      response.completions.add(c);
+                    }
+                  });
+          return response;
         });
-    return ret.get();
+  }
+
+  private static CompletionParameters newCompletionParameters(
+      PsiElement position, PsiFile originalFile, int offset, Editor editor) {
+    // The constructor is not public. It is the same one that the editor-based completion uses.
+    try {
+      Constructor<CompletionParameters> constructor =
+          CompletionParameters.class.getDeclaredConstructor(
+              PsiElement.class,
+              PsiFile.class,
+              CompletionType.class,
+              int.class,
+              int.class,
+              Editor.class,
+              CompletionProcess.class);
+      constructor.setAccessible(true);
+      return constructor.newInstance(
+          position,
+          originalFile,
+          CompletionType.BASIC,
+          offset,
+          1,
+          editor,
+          new HeadlessCompletionProcess());
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException("Headless completion is not supported by this IDE", e);
+    }
+  }
+
+  public Histogram getEditorTimes() {
+    return editorTimes;
+  }
+
+  public Histogram getHeadlessTimes() {
+    return headlessTimes;
+  }
+
+  private Ordering<Completion> getOrdering(@Nullable String ranking, Project project) {
+    if (ranking == null || ranking.equals(Request.ALPHABETICAL)) {
+      return new CompletionOrdering();
+    }
+    if (ranking.equals(Request.RELEVANCE)) {
+      return new RelevanceOrdering(completionUsage.getCounts(project));
+    }
+    throw new RuntimeException("Unknown ranking: " + ranking);
+  }
+
+  private static Response sortAndLimit(
+      Response response, Request request, Ordering<Completion> ordering) {
+    int limit = request.limit;
+    response.ranking = request.ranking != null ? request.ranking : Request.ALPHABETICAL;
+    if (limit > 0 && response.completions.size() > limit) {
+      // Select the top ones in linear time, and sort only them.
+      response.completions = new ArrayList<>(ordering.leastOf(response.completions, limit));
+      response.incomplete = true;
+    } else {
+      Collections.sort(response.completions, ordering);
+    }
+    return response;
+  }
+
+  // Converts a lookup item, or returns null if it is not a completion for the prefix. The items are
+  // filtered before rendering as the rendering is the costly part.
+  @Nullable
+  private static Completion toCompletion(LookupElement item, int prefixLength, String prefix) {
+    PsiElement psi = item.getPsiElement();
+    if (psi == null) {
+      return null;
+    }
+    String word = item.getLookupString().substring(prefixLength);
+    if (!word.startsWith(prefix)) {
+      return null;
+    }
+    Completion c = new Completion();
+    LookupElementPresentation presentation = new LookupElementPresentation();
+    item.renderElement(presentation);
+    c.word = word;
+    if (psi instanceof PsiMethod) {
+      PsiMethod m = (PsiMethod) psi;
+      if (m.getParameterList().getParametersCount() == 0) {
+        c.word += "()";
+      } else {
+        c.word += '(';
+      }
+      c.menu = presentation.getTypeText() + " - " + presentation.getTailText();
+      c.kind = Completion.FUNCTION;
+    } else if (psi instanceof PsiKeyword) {
+      c.kind = Completion.KEYWORD;
+    } else if (psi instanceof PsiClass) {
+      c.menu = presentation.getTailText();
+      c.kind = Completion.TYPE;
+    } else if (psi instanceof PsiVariable) {
+      c.menu = presentation.getTypeText();
+      c.kind = Completion.VARIABLE;
+    } else {
+      c.menu = psi.getClass().getSimpleName();
+      c.kind = "";
+    }
+    return c;
+  }
+
+  // Sends the items that the completion contributors have added to the lookup so far. Used on EDT.
+  private static class PartialResultSender {
+    private final Editor editor;
+    private final String prefix;
+    private final int limit;
+    private final RequestContext context;
+    private final Set<LookupElement> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int sent;
+
+    PartialResultSender(Editor editor, String prefix, int limit, RequestContext context) {
+      this.editor = editor;
+      this.prefix = prefix;
+      this.limit = limit;
+      this.context = context;
+    }
+
+    void sendNewItems() {
+      CompletionProgressIndicator indicator =
+          CompletionServiceImpl.getCurrentCompletionProgressIndicator();
+      if (indicator == null || indicator.getEditor() != editor) {
+        return;
+      }
+      LookupImpl lookup = indicator.getLookup();
+      Response partial = new Response();
+      for (LookupElement item : lookup.getItems()) {
+        if (limit > 0 && sent + partial.completions.size() >= limit) {
+          break;
+        }
+        if (seen.add(item)) {
+          Completion c = toCompletion(item, lookup.getPrefixLength(item), prefix);
+          if (c != null) {
+            partial.completions.add(c);
+          }
+        }
+      }
+      if (!partial.completions.isEmpty()) {
+        sent += partial.completions.size();
+        context.sendPartialResult(partial);
+      }
+    }
+  }
+
+  private static class HeadlessCompletionProcess extends UserDataHolderBase
+      implements CompletionProcess {
+    @Override
+    public boolean isAutopopupCompletion() {
+      return false;
+    }
   }
 
   public static class Request {
+    static final String ALPHABETICAL = "alphabetical";
+    static final String RELEVANCE = "relevance";
+
     String file;
-    String text;
+    // Either the whole text, or the version of the document opened with java_did_open.
+    @Nullable String text;
+    int version;
     int offset;
+    // Only the completions that start with the prefix are returned.
+    @Nullable String prefix;
+    // The max number of the completions. 0 means no limit.
+    int limit;
+    // If true, the completions are also sent as partial results while they are computed. Not
+    // supported by the headless completion.
+    boolean stream;
+    // If true, the completion runs without EDT and an editor. The default can be changed with
+    // -Dijaas.headlessCompletion=true.
+    boolean headless = Boolean.getBoolean("ijaas.headlessCompletion");
+    // ALPHABETICAL or RELEVANCE. The default can be changed with -Dijaas.completionRanking.
+    @Nullable String ranking = System.getProperty("ijaas.completionRanking");
+    // Set by Warmup, so that the completion cache and the engine times are left alone. Not read
+    // from the clients.
+    transient boolean warmup;
   }
 
   public static class Response {
     ArrayList<Completion> completions = new ArrayList<>();
+    // True if the completions are truncated by the limit.
+    boolean incomplete;
+    // The ranking that the completions are sorted by.
+    String ranking;
   }
 
-  public class Completion {
+  public static class Completion {
     public static final String VARIABLE = "v";
     public static final String FUNCTION = "f";
     public static final String TYPE = "t";
@@ -188,9 +537,14 @@ public class JavaCompleteHandler extends BaseHandler<Request, Response> {
     public String word;
     public String menu;
     public String kind;
+    // The position in the lookup, which is in the order of the IntelliJ weighers. Not sent.
+    transient int rank;
+    // The position of the group of the adjacent items that the weighers cannot tell apart. Not
+    // sent.
+    transient int weigherRank;
   }
 
-  private static class CompletionOrdering extends Ordering<Completion> {
+  static class CompletionOrdering extends Ordering<Completion> {
     @Override
     public int compare(Completion arg0, Completion arg1) {
       boolean arg0Keyword = arg0.kind.equals(Completion.KEYWORD);
@@ -203,4 +557,35 @@ public class JavaCompleteHandler extends BaseHandler<Request, Response> {
       return arg0.word.compareTo(arg1.word);
     }
   }
+
+  // Keeps the order of the lookup, and puts the words that the user accepted more often in the
+  // project first among the items that the weighers rank the same. The counts are compared by
+  // their powers of two, so that a word used a few more times does not override the lookup order.
+  // Each count is looked up once per sort, as the counts can change while sorting.
+  static class RelevanceOrdering extends Ordering<Completion> {
+    private final Map<String, Integer> usage;
+    private final Map<Completion, Integer> usageLevels = new IdentityHashMap<>();
+
+    RelevanceOrdering(Map<String, Integer> usage) {
+      this.usage = usage;
+    }
+
+    @Override
+    public int compare(Completion arg0, Completion arg1) {
+      int result = Integer.compare(arg0.weigherRank, arg1.weigherRank);
+      if (result == 0) {
+        result = Integer.compare(getUsageLevel(arg1), getUsageLevel(arg0));
+      }
+      return result != 0 ? result : Integer.compare(arg0.rank, arg1.rank);
+    }
+
+    private int getUsageLevel(Completion c) {
+      return usageLevels.computeIfAbsent(
+          c,
+          key -> {
+            Integer count = usage.get(key.word);
+            return count != null ? 32 - Integer.numberOfLeadingZeros(count) : 0;
+          });
+    }
+  }
 }
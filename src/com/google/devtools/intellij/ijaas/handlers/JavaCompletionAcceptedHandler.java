@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompletionAcceptedHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaCompletionAcceptedHandler.Response;
+import com.intellij.openapi.project.Project;
+
+// Called when the user picks a completion, so that the relevance ranking learns the words used in
+// the project.
+public class JavaCompletionAcceptedHandler extends BaseHandler<Request, Response> {
+  private final ProjectResolver projectResolver;
+  private final CompletionUsage completionUsage;
+
+  public JavaCompletionAcceptedHandler(
+      ProjectResolver projectResolver, CompletionUsage completionUsage) {
+    this.projectResolver = projectResolver;
+    this.completionUsage = completionUsage;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    if (request.word == null || request.word.isEmpty()) {
+      throw new RuntimeException("word is required");
+    }
+    Project project = projectResolver.resolve(request.file);
+    if (project == null) {
+      throw new RuntimeException("Cannot find the target project");
+    }
+    completionUsage.record(project, request.word);
+    return new Response();
+  }
+
+  public static class Request {
+    String file;
+    // The word of the accepted completion as java_complete returned it.
+    String word;
+  }
+
+  public static class Response {}
+}
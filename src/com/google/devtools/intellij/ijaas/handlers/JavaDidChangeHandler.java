@@ -0,0 +1,141 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.DocumentStore;
+import com.google.devtools.intellij.ijaas.DocumentStore.OpenDocument;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidChangeHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidChangeHandler.Response;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiDocumentManager;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+public class JavaDidChangeHandler extends BaseHandler<Request, Response> {
+  private final DocumentStore documents;
+
+  public JavaDidChangeHandler(DocumentStore documents) {
+    this.documents = documents;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected void validate(Request request) {
+    if (request.file == null) {
+      throw new IllegalArgumentException("file is required");
+    }
+    if (request.text == null && request.changes == null) {
+      throw new IllegalArgumentException("text or changes is required");
+    }
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    OpenDocument openDocument = documents.get(request.file);
+    if (openDocument == null) {
+      throw new RuntimeException("The document is not opened");
+    }
+    // A full text can resync the document at any version. Range edits must be applied in order.
+    if (request.text == null && request.version != openDocument.getVersion() + 1) {
+      throw new RuntimeException(
+          String.format(
+              "The document is out of sync: requested %d, current %d",
+              request.version, openDocument.getVersion()));
+    }
+    Project project = openDocument.getProject();
+    Document document = openDocument.getDocument();
+    invokeAndWait(
+        context,
+        () ->
+            WriteCommandAction.runWriteCommandAction(
+                project,
+                () -> {
+                  if (request.text != null) {
+                    document.setText(request.text);
+                  } else {
+                    for (Change change : request.changes) {
+                      applyChange(document, change);
+                    }
+                  }
+                  // Committing here makes the PSI reparse only the changed ranges.
+                  PsiDocumentManager.getInstance(project).commitDocument(document);
+                  openDocument.setVersion(request.version);
+                }));
+    return new Response();
+  }
+
+  // The client buffer is a list of lines joined with "\n". The change replaces the lines
+  // [start, end) with the given lines. end == -1 means the end of the buffer.
+  private static void applyChange(Document document, Change change) {
+    int lineCount = Math.max(1, document.getLineCount());
+    int start = change.start;
+    int end = change.end == -1 ? lineCount : change.end;
+    if (start < 0 || start > end || end > lineCount) {
+      throw new RuntimeException(
+          String.format("Invalid range [%d, %d) for %d lines", start, end, lineCount));
+    }
+    List<String> lines = change.lines == null ? new ArrayList<>() : change.lines;
+    String text = String.join("\n", lines);
+    int textLength = document.getTextLength();
+    if (!lines.isEmpty()) {
+      if (end < lineCount) {
+        document.replaceString(
+            document.getLineStartOffset(start), document.getLineStartOffset(end), text + "\n");
+      } else if (start < lineCount) {
+        document.replaceString(document.getLineStartOffset(start), textLength, text);
+      } else {
+        document.insertString(textLength, "\n" + text);
+      }
+    } else if (start < end) {
+      if (end < lineCount) {
+        document.deleteString(
+            document.getLineStartOffset(start), document.getLineStartOffset(end));
+      } else if (start == 0) {
+        document.deleteString(0, textLength);
+      } else {
+        // Delete the trailing lines together with the preceding line break.
+        document.deleteString(document.getLineStartOffset(start) - 1, textLength);
+      }
+    }
+  }
+
+  public static class Request {
+    String file;
+    int version;
+    @Nullable String text;
+    @Nullable List<Change> changes;
+  }
+
+  public static class Change {
+    int start;
+    int end;
+    List<String> lines;
+  }
+
+  public static class Response {}
+}
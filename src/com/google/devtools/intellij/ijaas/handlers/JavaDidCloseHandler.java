@@ -0,0 +1,59 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.DocumentStore;
+import com.google.devtools.intellij.ijaas.DocumentStore.OpenDocument;
+import com.google.devtools.intellij.ijaas.EditorPool;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidCloseHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidCloseHandler.Response;
+import com.intellij.openapi.application.ApplicationManager;
+
+public class JavaDidCloseHandler extends BaseHandler<Request, Response> {
+  private final DocumentStore documents;
+  private final EditorPool editorPool;
+
+  public JavaDidCloseHandler(DocumentStore documents, EditorPool editorPool) {
+    this.documents = documents;
+    this.editorPool = editorPool;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    OpenDocument openDocument = documents.remove(request.file);
+    if (openDocument != null) {
+      ApplicationManager.getApplication()
+          .invokeLater(() -> editorPool.release(openDocument.getDocument()));
+    }
+    return new Response();
+  }
+
+  public static class Request {
+    String file;
+  }
+
+  public static class Response {}
+}
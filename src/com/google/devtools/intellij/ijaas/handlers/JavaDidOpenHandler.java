@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.DocumentStore;
+import com.google.devtools.intellij.ijaas.DocumentStore.OpenDocument;
+import com.google.devtools.intellij.ijaas.EditorPool;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidOpenHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaDidOpenHandler.Response;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import java.io.File;
+
+public class JavaDidOpenHandler extends BaseHandler<Request, Response> {
+  private final ProjectResolver projectResolver;
+  private final DocumentStore documents;
+  private final EditorPool editorPool;
+
+  public JavaDidOpenHandler(
+      ProjectResolver projectResolver, DocumentStore documents, EditorPool editorPool) {
+    this.projectResolver = projectResolver;
+    this.documents = documents;
+    this.editorPool = editorPool;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected void validate(Request request) {
+    if (request.file == null || request.text == null) {
+      throw new IllegalArgumentException("file and text are required");
+    }
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    Project project = projectResolver.resolve(request.file);
+    if (project == null) {
+      throw new RuntimeException("Cannot find the target project");
+    }
+    Ref<OpenDocument> openDocumentRef = new Ref<>();
+    runReadAction(
+        context,
+        () -> {
+          // The event system is enabled so that the edits from java_did_change are committed
+          // to this PsiFile incrementally.
+          PsiFile psiFile =
+              PsiFileFactory.getInstance(project)
+                  .createFileFromText(
+                      new File(request.file).getName(),
+                      JavaLanguage.INSTANCE,
+                      request.text,
+                      true,
+                      false);
+          Document document = PsiDocumentManager.getInstance(project).getDocument(psiFile);
+          if (document == null) {
+            throw new RuntimeException("Cannot create a document");
+          }
+          openDocumentRef.set(new OpenDocument(project, psiFile, document, request.version));
+        });
+    // A reopen replaces the document. Release the previous one as java_did_close does.
+    OpenDocument previous = documents.put(request.file, openDocumentRef.get());
+    if (previous != null) {
+      ApplicationManager.getApplication()
+          .invokeLater(() -> editorPool.release(previous.getDocument()));
+    }
+    return new Response();
+  }
+
+  public static class Request {
+    String file;
+    String text;
+    int version;
+  }
+
+  public static class Response {}
+}
@@ -16,109 +16,191 @@ package com.google.devtools.intellij.ijaas.handlers;
 import static java.util.stream.Collectors.toList;
 
 import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.DocumentStore;
+import com.google.devtools.intellij.ijaas.DocumentStore.OpenDocument;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestContext;
 import com.google.devtools.intellij.ijaas.handlers.JavaGetImportCandidatesHandler.Request;
 import com.google.devtools.intellij.ijaas.handlers.JavaGetImportCandidatesHandler.Response;
-import com.intellij.codeInsight.daemon.impl.quickfix.ImportClassFix;
+import com.intellij.codeInsight.JavaProjectCodeInsightSettings;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.lang.java.JavaLanguage;
-import com.intellij.openapi.application.Application;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectLocator;
-import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.openapi.vfs.LocalFileSystem;
-import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
 import com.intellij.psi.JavaRecursiveElementWalkingVisitor;
+import com.intellij.psi.PsiAnnotation;
 import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiFileFactory;
 import com.intellij.psi.PsiJavaCodeReferenceElement;
 import com.intellij.psi.PsiJavaFile;
-import java.io.File;
+import com.intellij.psi.PsiReferenceList;
+import com.intellij.psi.PsiReferenceParameterList;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchScopeUtil;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 public class JavaGetImportCandidatesHandler extends BaseHandler<Request, Response> {
+  private final ProjectResolver projectResolver;
+  private final DocumentStore documents;
+  private final ShortNameCache shortNameCache;
+
+  public JavaGetImportCandidatesHandler(
+      ProjectResolver projectResolver, DocumentStore documents, ShortNameCache shortNameCache) {
+    this.projectResolver = projectResolver;
+    this.documents = documents;
+    this.shortNameCache = shortNameCache;
+  }
+
   @Override
-  protected Class<Request> requestClass() {
+  public Class<Request> requestClass() {
     return Request.class;
   }
 
   @Override
-  protected Response handle(Request request) {
-    Project project = findProject(request.file);
-    if (project == null) {
-      throw new RuntimeException("Cannot find the target project");
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    Project project;
+    OpenDocument openDocument = null;
+    if (request.text != null) {
+      project = projectResolver.resolve(request.file);
+      if (project == null) {
+        throw new RuntimeException("Cannot find the target project");
+      }
+    } else {
+      openDocument = documents.get(request.file, request.version);
+      project = openDocument.getProject();
     }
-    Application application = ApplicationManager.getApplication();
+    PsiFile openPsiFile = openDocument != null ? openDocument.getPsiFile() : null;
     Response response = new Response();
-    application.runReadAction(
-        () -> {
-          PsiFile psiFile =
-              PsiFileFactory.getInstance(project)
-                  .createFileFromText(JavaLanguage.INSTANCE, request.text);
-          if (!(psiFile instanceof PsiJavaFile)) {
-            throw new RuntimeException("Cannot parse as Java file");
-          }
-          PsiJavaFile psiJavaFile = (PsiJavaFile) psiFile;
+    // Restarted if a write action comes in, e.g. a VFS refresh. This can take a while on a large
+    // file, and holding off the write action would block the UI.
+    response.choices =
+        computeInNonBlockingReadAction(
+            context,
+            () -> {
+              PsiFile psiFile =
+                  openPsiFile != null
+                      ? openPsiFile
+                      : PsiFileFactory.getInstance(project)
+                          .createFileFromText(JavaLanguage.INSTANCE, request.text);
+              if (!(psiFile instanceof PsiJavaFile)) {
+                throw new RuntimeException("Cannot parse as Java file");
+              }
+              PsiJavaFile psiJavaFile = (PsiJavaFile) psiFile;
 
-          Set<String> processed = new HashSet<>();
-          for (PsiClass psiClass : psiJavaFile.getClasses()) {
-            psiClass.accept(
-                new JavaRecursiveElementWalkingVisitor() {
-                  @Override
-                  public void visitReferenceElement(PsiJavaCodeReferenceElement reference) {
-                    try {
-                      if (reference.getQualifier() != null) {
-                        return;
-                      }
-                      String name = reference.getReferenceName();
-                      if (processed.contains(name)) {
-                        return;
+              // The first reference of each name that does not resolve, in the order of appearance.
+              Set<String> processed = new HashSet<>();
+              Map<String, PsiJavaCodeReferenceElement> unresolved = new LinkedHashMap<>();
+              for (PsiClass psiClass : psiJavaFile.getClasses()) {
+                psiClass.accept(
+                    new JavaRecursiveElementWalkingVisitor() {
+                      @Override
+                      public void visitReferenceElement(PsiJavaCodeReferenceElement reference) {
+                        try {
+                          if (reference.getQualifier() != null) {
+                            return;
+                          }
+                          String name = reference.getReferenceName();
+                          if (name == null || !processed.add(name)) {
+                            return;
+                          }
+                          if (reference.resolve() == null) {
+                            unresolved.put(name, reference);
+                          }
+                        } finally {
+                          super.visitReferenceElement(reference);
+                        }
                       }
-                      processed.add(name);
+                    });
+              }
 
-                      Set<String> candidates = new HashSet<>();
-                      for (PsiClass t : new ImportClassFix(reference).getClassesToImport()) {
-                        candidates.add(String.format("import %s;", t.getQualifiedName()));
-                      }
-                      if (!candidates.isEmpty()) {
-                        response.choices.add(candidates.stream().sorted().collect(toList()));
-                      }
-                    } finally {
-                      super.visitReferenceElement(reference);
-                    }
-                  }
-                });
-          }
-        });
+              // The workers run in read actions as this thread holds one.
+              GlobalSearchScope scope = psiJavaFile.getResolveScope();
+              Map<String, List<String>> candidatesByName = new ConcurrentHashMap<>();
+              JobLauncher.getInstance()
+                  .invokeConcurrentlyUnderProgress(
+                      new ArrayList<>(unresolved.keySet()),
+                      ProgressManager.getGlobalProgressIndicator(),
+                      name -> {
+                        PsiJavaCodeReferenceElement reference = unresolved.get(name);
+                        Set<String> candidates = new HashSet<>();
+                        for (PsiClass t : shortNameCache.getClasses(project, name)) {
+                          if (PsiSearchScopeUtil.isInScope(scope, t)
+                              && isImportable(project, t, reference)) {
+                            candidates.add(String.format("import %s;", t.getQualifiedName()));
+                          }
+                        }
+                        if (!candidates.isEmpty()) {
+                          candidatesByName.put(
+                              name, candidates.stream().sorted().collect(toList()));
+                        }
+                        return true;
+                      });
+              List<List<String>> choices = new ArrayList<>();
+              for (String name : unresolved.keySet()) {
+                List<String> candidates = candidatesByName.get(name);
+                if (candidates != null) {
+                  choices.add(candidates);
+                }
+              }
+              return choices;
+            });
     return response;
   }
 
-  @Nullable
-  private Project findProject(String file) {
-    LocalFileSystem localFileSystem = LocalFileSystem.getInstance();
-    ProjectLocator projectLocator = ProjectLocator.getInstance();
-    AtomicReference<Project> ret = new AtomicReference<>();
-    FileUtil.processFilesRecursively(
-        new File(file),
-        (f) -> {
-          VirtualFile vf = localFileSystem.findFileByIoFile(f);
-          if (vf != null) {
-            ret.set(projectLocator.guessProjectForFile(vf));
-            return false;
-          }
-          return true;
-        });
-    return ret.get();
+  // The filters of ImportClassFix applied to a candidate of the reference.
+  private static boolean isImportable(
+      Project project, PsiClass psiClass, PsiJavaCodeReferenceElement reference) {
+    String qualifiedName = psiClass.getQualifiedName();
+    if (qualifiedName == null
+        || JavaProjectCodeInsightSettings.getSettings(project).isExcluded(qualifiedName)) {
+      return false;
+    }
+    if (!JavaPsiFacade.getInstance(project)
+        .getResolveHelper()
+        .isAccessible(psiClass, reference, null)) {
+      return false;
+    }
+    PsiElement parent = reference.getParent();
+    if (parent instanceof PsiAnnotation && !psiClass.isAnnotationType()) {
+      return false;
+    }
+    if (parent instanceof PsiReferenceList) {
+      PsiReferenceList.Role role = ((PsiReferenceList) parent).getRole();
+      PsiElement owner = parent.getParent();
+      if (role == PsiReferenceList.Role.IMPLEMENTS_LIST && !psiClass.isInterface()) {
+        return false;
+      }
+      if (role == PsiReferenceList.Role.EXTENDS_LIST
+          && owner instanceof PsiClass
+          && ((PsiClass) owner).isInterface() != psiClass.isInterface()) {
+        return false;
+      }
+    }
+    PsiReferenceParameterList parameterList = reference.getParameterList();
+    int typeArguments = parameterList != null ? parameterList.getTypeArguments().length : 0;
+    return typeArguments == 0 || psiClass.getTypeParameters().length == typeArguments;
   }
 
   public static class Request {
     String file;
-    String text;
+    // Either the whole text, or the version of the document opened with java_did_open.
+    @Nullable String text;
+    int version;
   }
 
   public static class Response {
@@ -0,0 +1,65 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.IjaasHandler;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcChangedHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcChangedHandler.Response;
+import com.google.gson.annotations.SerializedName;
+import javax.annotation.Nullable;
+
+// The asynchronous version of java_src_update. The problems are sent later with a diagnostics
+// notification.
+public class JavaSrcChangedHandler implements IjaasHandler<Request, Response> {
+  private final DiagnosticsPublisher publisher;
+
+  public JavaSrcChangedHandler(DiagnosticsPublisher publisher) {
+    this.publisher = publisher;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  public String getFile(Request request) {
+    return request.file;
+  }
+
+  @Override
+  public Response handleRequest(@Nullable Request request, RequestContext context) {
+    if (request == null || request.file == null) {
+      throw new IllegalArgumentException("file is required");
+    }
+    publisher.subscribe(context.getConnection(), request.file, request.previousResultId);
+    return new Response();
+  }
+
+  public static class Request {
+    String file;
+
+    @SerializedName("previous_result_id")
+    @Nullable
+    String previousResultId;
+  }
+
+  public static class Response {}
+}
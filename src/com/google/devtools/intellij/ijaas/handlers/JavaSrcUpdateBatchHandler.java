@@ -0,0 +1,334 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestCancelledException;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsCache.Result;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsCache.Stamp;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateBatchHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateBatchHandler.Response;
+import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Problem;
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.RefreshQueue;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+// Checks many files at once, e.g. the changed files in a pre-commit hook. The VFS is refreshed
+// and walked in the background, the files are reloaded in one write action, and the inspection
+// tools and the global context are set up once per project. The files are then analyzed in
+// parallel, and the problems of each file are sent as a partial result as soon as it finishes.
+public class JavaSrcUpdateBatchHandler extends BaseHandler<Request, Response> {
+  private final ProjectResolver projectResolver;
+  private final InspectionRunner inspectionRunner;
+  private final DiagnosticsCache diagnosticsCache;
+  private final ExecutorService executor;
+  private final long timeoutMillis = Long.getLong("ijaas.batchTimeoutMs", 600_000);
+
+  public JavaSrcUpdateBatchHandler(
+      ProjectResolver projectResolver,
+      InspectionRunner inspectionRunner,
+      DiagnosticsCache diagnosticsCache,
+      int parallelism) {
+    this.projectResolver = projectResolver;
+    this.inspectionRunner = inspectionRunner;
+    this.diagnosticsCache = diagnosticsCache;
+    executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("ijaas batch", parallelism);
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  @Override
+  protected void validate(Request request) {
+    if ((request.files == null || request.files.isEmpty())
+        && request.directory == null
+        && request.module == null) {
+      throw new IllegalArgumentException("files, directory or module is required");
+    }
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    List<Target> targets = findTargets(request, context);
+    targets.sort(Comparator.comparing(target -> target.file));
+
+    runReadAction(
+        context,
+        () -> {
+          for (Target target : targets) {
+            if (target.project != null && target.vf != null) {
+              target.psiFile = PsiManager.getInstance(target.project).findFile(target.vf);
+            }
+          }
+        });
+    invokeAndWait(
+        context,
+        () ->
+            ApplicationManager.getApplication()
+                .runWriteAction(
+                    () -> {
+                      for (Target target : targets) {
+                        if (target.psiFile != null) {
+                          PsiManager.getInstance(target.project).reloadFromDisk(target.psiFile);
+                        }
+                      }
+                    }));
+    context.checkCancelled();
+
+    Map<Project, InspectionRunner.Session> sessions = new HashMap<>();
+    for (Target target : targets) {
+      if (target.psiFile != null) {
+        sessions.computeIfAbsent(target.project, inspectionRunner::newSession);
+      }
+    }
+
+    ProgressIndicator parent = ProgressManager.getGlobalProgressIndicator();
+    List<ProgressIndicator> indicators = new ArrayList<>();
+    List<Future<FileProblems>> futures = new ArrayList<>();
+    try {
+      for (Target target : targets) {
+        ProgressIndicator indicator =
+            parent != null ? new SensitiveProgressWrapper(parent) : new EmptyProgressIndicator();
+        indicators.add(indicator);
+        InspectionRunner.Session session = sessions.get(target.project);
+        futures.add(
+            executor.submit(
+                () ->
+                    ProgressManager.getInstance()
+                        .runProcess(() -> check(target, session, context), indicator)));
+      }
+      Response response = new Response();
+      for (Future<FileProblems> future : futures) {
+        response.files.add(ProgressIndicatorUtils.awaitWithCheckCanceled(future));
+      }
+      return response;
+    } finally {
+      futures.forEach(future -> future.cancel(false));
+      indicators.forEach(ProgressIndicator::cancel);
+    }
+  }
+
+  // Refreshes the targets from the disk. Neither the refresh nor the walk of the directories runs
+  // on EDT, as they can take long in a large project.
+  private List<Target> findTargets(Request request, RequestContext context) {
+    List<Target> targets = new ArrayList<>();
+    LocalFileSystem fs = LocalFileSystem.getInstance();
+    if (request.files != null) {
+      List<File> ioFiles = new ArrayList<>();
+      for (String file : request.files) {
+        ioFiles.add(new File(FileUtil.toSystemDependentName(file)));
+      }
+      SettableFuture<Void> refreshed = SettableFuture.create();
+      fs.refreshIoFiles(ioFiles, true, false, () -> refreshed.set(null));
+      ProgressIndicatorUtils.awaitWithCheckCanceled(refreshed);
+      for (String file : request.files) {
+        Target target = new Target(file);
+        target.project = projectResolver.resolve(file);
+        target.vf = fs.findFileByIoFile(new File(FileUtil.toSystemDependentName(file)));
+        targets.add(target);
+      }
+    }
+    if (request.directory != null) {
+      Project project = projectResolver.resolve(request.directory);
+      if (project == null) {
+        throw new RuntimeException("Cannot find the target project");
+      }
+      VirtualFile dir =
+          fs.refreshAndFindFileByIoFile(
+              new File(FileUtil.toSystemDependentName(request.directory)));
+      if (dir == null || !dir.isDirectory()) {
+        throw new RuntimeException("Cannot find the directory");
+      }
+      refreshRecursively(dir);
+      // The walk can be restarted by a write action, so it collects into its own list.
+      targets.addAll(
+          computeInNonBlockingReadAction(
+              context,
+              () -> {
+                List<Target> found = new ArrayList<>();
+                ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+                VfsUtilCore.iterateChildrenRecursively(
+                    dir,
+                    file -> !fileIndex.isExcluded(file),
+                    file -> {
+                      if (isJavaFile(file)) {
+                        found.add(new Target(project, file));
+                      }
+                      return true;
+                    });
+                return found;
+              }));
+    }
+    if (request.module != null) {
+      Module module = findModule(request.module);
+      ModuleRootManager rootManager = ModuleRootManager.getInstance(module);
+      refreshRecursively(
+          computeInNonBlockingReadAction(context, rootManager::getContentRoots));
+      targets.addAll(
+          computeInNonBlockingReadAction(
+              context,
+              () -> {
+                List<Target> found = new ArrayList<>();
+                rootManager
+                    .getFileIndex()
+                    .iterateContent(
+                        file -> {
+                          if (isJavaFile(file)) {
+                            found.add(new Target(module.getProject(), file));
+                          }
+                          return true;
+                        });
+                return found;
+              }));
+    }
+    return targets;
+  }
+
+  // Refreshes the directories asynchronously, so that EDT is not blocked for the disk walk, and
+  // waits for it on this thread.
+  private static void refreshRecursively(VirtualFile... dirs) {
+    VfsUtil.markDirty(true, true, dirs);
+    SettableFuture<Void> refreshed = SettableFuture.create();
+    RefreshQueue.getInstance().refresh(true, true, () -> refreshed.set(null), dirs);
+    ProgressIndicatorUtils.awaitWithCheckCanceled(refreshed);
+  }
+
+  private static Module findModule(String name) {
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      Module module = ModuleManager.getInstance(project).findModuleByName(name);
+      if (module != null) {
+        return module;
+      }
+    }
+    throw new RuntimeException("Cannot find the module " + name);
+  }
+
+  private static boolean isJavaFile(VirtualFile file) {
+    return !file.isDirectory() && file.getFileType() == JavaFileType.INSTANCE;
+  }
+
+  private FileProblems check(
+      Target target, @Nullable InspectionRunner.Session session, RequestContext context) {
+    FileProblems fileProblems = new FileProblems();
+    fileProblems.file = target.file;
+    try {
+      if (target.vf == null) {
+        throw new RuntimeException("Cannot find the file");
+      } else if (target.project == null) {
+        throw new RuntimeException("Cannot find the target project");
+      } else if (target.psiFile == null || session == null) {
+        throw new RuntimeException("Cannot find the PsiFile");
+      }
+      // The stamp is taken after all the files are reloaded, as the reloads are the changes of
+      // the dependencies of each other.
+      Stamp stamp =
+          diagnosticsCache.stamp(target.project, target.vf, target.vf.contentsToByteArray());
+      Result result = diagnosticsCache.get(target.file, stamp);
+      if (result == null) {
+        List<Problem> problems =
+            JavaSrcUpdateHandler.findProblems(
+                context, target.project, target.vf, target.psiFile, inspectionRunner, session);
+        result = diagnosticsCache.put(target.file, target.project, stamp, problems);
+      }
+      fileProblems.problems = result.problems;
+    } catch (ProcessCanceledException | RequestCancelledException e) {
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      // A file that cannot be checked does not fail the others.
+      fileProblems.error = e.getMessage();
+    }
+    context.sendPartialResult(fileProblems);
+    return fileProblems;
+  }
+
+  private static class Target {
+    private final String file;
+    @Nullable private Project project;
+    @Nullable private VirtualFile vf;
+    @Nullable private PsiFile psiFile;
+
+    Target(String file) {
+      this.file = file;
+    }
+
+    Target(Project project, VirtualFile vf) {
+      this.file = vf.getPath();
+      this.project = project;
+      this.vf = vf;
+    }
+  }
+
+  public static class Request {
+    @Nullable List<String> files;
+    // All the Java files under the directory, except for the excluded ones.
+    @Nullable String directory;
+    // All the Java files in the content roots of the module.
+    @Nullable String module;
+  }
+
+  public static class Response {
+    List<FileProblems> files = new ArrayList<>();
+  }
+
+  public static class FileProblems {
+    String file;
+    @Nullable List<Problem> problems;
+    @Nullable String error;
+  }
+}
@@ -17,49 +17,88 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Ordering;
 import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.ProjectResolver;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsCache.Result;
+import com.google.devtools.intellij.ijaas.handlers.DiagnosticsCache.Stamp;
 import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Request;
 import com.google.devtools.intellij.ijaas.handlers.JavaSrcUpdateHandler.Response;
+import com.google.gson.annotations.SerializedName;
 import com.intellij.codeInsight.CodeSmellInfo;
-import com.intellij.codeInspection.GlobalInspectionContext;
-import com.intellij.codeInspection.InspectionEngine;
-import com.intellij.codeInspection.InspectionManager;
 import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemDescriptorUtil;
 import com.intellij.codeInspection.ProblemHighlightType;
-import com.intellij.codeInspection.ex.InspectionToolWrapper;
-import com.intellij.codeInspection.ex.Tools;
 import com.intellij.lang.annotation.HighlightSeverity;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectLocator;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.CodeSmellDetector;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.profile.codeInspection.InspectionProfileManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
 
 public class JavaSrcUpdateHandler extends BaseHandler<Request, Response> {
+  private final ProjectResolver projectResolver;
+  private final InspectionRunner inspectionRunner;
+  private final DiagnosticsCache diagnosticsCache;
+
+  public JavaSrcUpdateHandler(
+      ProjectResolver projectResolver,
+      InspectionRunner inspectionRunner,
+      DiagnosticsCache diagnosticsCache) {
+    this.projectResolver = projectResolver;
+    this.inspectionRunner = inspectionRunner;
+    this.diagnosticsCache = diagnosticsCache;
+  }
+
   @Override
-  protected Class<Request> requestClass() {
+  public Class<Request> requestClass() {
     return Request.class;
   }
 
   @Override
-  protected Response handle(Request request) {
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  public String getFile(Request request) {
+    return request.file;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
     File file = new File(FileUtil.toSystemDependentName(request.file));
     if (!file.exists()) {
       throw new RuntimeException("Cannot find the file");
     }
-    Application application = ApplicationManager.getApplication();
-    Response response = new Response();
+    Project project = projectResolver.resolve(request.file);
+    if (project == null) {
+      throw new RuntimeException("Cannot find the target project");
+    }
+    byte[] content;
+    try {
+      content = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot read the file", e);
+    }
     Ref<VirtualFile> vfRef = new Ref<>();
-    application.invokeAndWait(
+    invokeAndWait(
+        context,
         () -> {
           VirtualFile vf = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(file);
           if (vf == null) {
@@ -68,72 +107,124 @@ public class JavaSrcUpdateHandler extends BaseHandler<Request, Response> {
           vfRef.set(vf);
         });
     VirtualFile vf = vfRef.get();
+    Stamp stamp = diagnosticsCache.stamp(project, vf, content);
+    Result previous =
+        request.previousResultId != null
+            ? diagnosticsCache.getPrevious(request.file, request.previousResultId)
+            : null;
+    Result result = diagnosticsCache.get(request.file, stamp);
+    if (result == null) {
+      result = diagnosticsCache.put(request.file, project, stamp, analyze(vf, project, context));
+    }
+    return toResponse(result, previous);
+  }
 
-    Ref<Project> projectRef = new Ref<>();
+  private List<Problem> analyze(VirtualFile vf, Project project, RequestContext context) {
+    Application application = ApplicationManager.getApplication();
     Ref<PsiFile> psiFileRef = new Ref<>();
-    application.runReadAction(
+    runReadAction(
+        context,
         () -> {
-          Project project = ProjectLocator.getInstance().guessProjectForFile(vf);
-          if (project == null) {
-            throw new RuntimeException("Cannot find the target project");
-          }
           PsiManager psiManager = PsiManager.getInstance(project);
           PsiFile psiFile = psiManager.findFile(vf);
           if (psiFile == null) {
             throw new RuntimeException("Cannot find the PsiFile");
           }
-          projectRef.set(project);
           psiFileRef.set(psiFile);
         });
-    Project project = projectRef.get();
     PsiFile psiFile = psiFileRef.get();
 
+    invokeAndWait(
+        context,
+        () ->
+            application.runWriteAction(
+                () -> {
+                  vf.refresh(false, false);
+                  PsiManager.getInstance(project).reloadFromDisk(psiFile);
+                }));
+    return findProblems(
+        context, project, vf, psiFile, inspectionRunner, inspectionRunner.newSession(project));
+  }
+
+  // Runs the highlighting passes and the inspections on a file that is up to date with the disk.
+  static List<Problem> findProblems(
+      RequestContext context,
+      Project project,
+      VirtualFile vf,
+      PsiFile psiFile,
+      InspectionRunner inspectionRunner,
+      InspectionRunner.Session session) {
+    List<Problem> problems = new ArrayList<>();
     Ref<List<CodeSmellInfo>> codeSmellInfosRef = new Ref<>();
-    application.invokeAndWait(
-        () -> {
-          application.runWriteAction(
-              () -> {
-                vf.refresh(false, false);
-                PsiManager.getInstance(project).reloadFromDisk(psiFile);
-              });
-          codeSmellInfosRef.set(
-              CodeSmellDetector.getInstance(project).findCodeSmells(ImmutableList.of(vf)));
-        });
+    invokeAndWait(
+        context,
+        () ->
+            codeSmellInfosRef.set(
+                CodeSmellDetector.getInstance(project).findCodeSmells(ImmutableList.of(vf))));
 
-    application.runReadAction(
+    runReadAction(
+        context,
         () -> {
           for (CodeSmellInfo codeSmellInfo : codeSmellInfosRef.get()) {
             Problem problem = new Problem();
             problem.lnum = codeSmellInfo.getStartLine() + 1;
-            problem.text = codeSmellInfo.getDescription();
+            problem.text = StringUtil.removeHtmlTags(codeSmellInfo.getDescription());
             problem.type = toProblemType(codeSmellInfo.getSeverity().myVal);
-            response.problems.add(problem);
-          }
-
-          InspectionManager inspectionManager = InspectionManager.getInstance(project);
-          GlobalInspectionContext context = inspectionManager.createNewGlobalContext(false);
-
-          List<Tools> toolsList =
-              InspectionProfileManager.getInstance(project)
-                  .getCurrentProfile()
-                  .getAllEnabledInspectionTools(project);
-          for (Tools tools : toolsList) {
-            InspectionToolWrapper tool = tools.getInspectionTool(psiFile);
-            List<ProblemDescriptor> descs =
-                InspectionEngine.runInspectionOnFile(psiFile, tool, context);
-            for (ProblemDescriptor desc : descs) {
-              Problem problem = new Problem();
-              problem.lnum = desc.getLineNumber() + 1;
-              problem.text = desc.toString();
-              problem.type = toProblemType(desc.getHighlightType());
-              response.problems.add(problem);
-            }
+            problems.add(problem);
           }
         });
-    response.problems.sort(new ProblemOrdering());
+    context.checkCancelled();
+
+    problems.addAll(inspectionRunner.run(session, psiFile, context));
+    problems.sort(new ProblemOrdering());
+    return deduplicate(problems);
+  }
+
+  // Returns only the difference if the client has the previous result, so that it can update the
+  // signs incrementally.
+  private static Response toResponse(Result result, @Nullable Result previous) {
+    Response response = new Response();
+    response.resultId = result.id;
+    if (previous == null) {
+      response.problems = result.problems;
+      return response;
+    }
+    Set<Problem> added = new LinkedHashSet<>(result.problems);
+    added.removeAll(previous.problems);
+    Set<Problem> removed = new LinkedHashSet<>(previous.problems);
+    removed.removeAll(result.problems);
+    response.problems = null;
+    response.added = new ArrayList<>(added);
+    response.removed = new ArrayList<>(removed);
     return response;
   }
 
+  // CodeSmellDetector runs the highlighting passes, which include the same inspections. Drops the
+  // problems that are reported again on the same line with the same text. The problems are
+  // sorted, so the most severe one is kept.
+  static List<Problem> deduplicate(List<Problem> problems) {
+    Set<String> seen = new HashSet<>();
+    List<Problem> ret = new ArrayList<>(problems.size());
+    for (Problem problem : problems) {
+      if (seen.add(problem.lnum + "\0" + problem.text)) {
+        ret.add(problem);
+      }
+    }
+    return ret;
+  }
+
+  // Called in a read action.
+  static Problem toProblem(ProblemDescriptor desc) {
+    Problem problem = new Problem();
+    problem.lnum = desc.getLineNumber() + 1;
+    // The same text as the highlighting shows, with #ref and #loc replaced.
+    problem.text =
+        StringUtil.removeHtmlTags(
+            ProblemDescriptorUtil.renderDescriptionMessage(desc, desc.getPsiElement()));
+    problem.type = toProblemType(desc.getHighlightType());
+    return problem;
+  }
+
   private static String toProblemType(int severityValue) {
     if (severityValue < HighlightSeverity.WARNING.myVal) {
       return Problem.INFO;
@@ -157,13 +248,25 @@ public class JavaSrcUpdateHandler extends BaseHandler<Request, Response> {
 
   public static class Request {
     String file;
+
+    // The result_id of the last response the client has. If it is still cached, only the
+    // difference from it is returned.
+    @SerializedName("previous_result_id")
+    @Nullable
+    String previousResultId;
   }
 
   public static class Response {
-    List<Problem> problems = new ArrayList<>();
+    @SerializedName("result_id")
+    String resultId;
+
+    // Either all the problems, or the problems added and removed since previous_result_id.
+    @Nullable List<Problem> problems = new ArrayList<>();
+    @Nullable List<Problem> added;
+    @Nullable List<Problem> removed;
   }
 
-  public class Problem {
+  public static class Problem {
     // Quickfix type characters
     // https://github.com/vim/vim/blob/3653822546fb0f1005c32bb5b70dc9bfacdfc954/src/quickfix.c#L2871
     public static final String INFO = "I";
@@ -173,9 +276,25 @@ public class JavaSrcUpdateHandler extends BaseHandler<Request, Response> {
     public int lnum;
     public String text;
     public String type;
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Problem)) {
+        return false;
+      }
+      Problem that = (Problem) o;
+      return lnum == that.lnum
+          && Objects.equals(text, that.text)
+          && Objects.equals(type, that.type);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(lnum, text, type);
+    }
   }
 
-  private static class ProblemOrdering extends Ordering<Problem> {
+  static class ProblemOrdering extends Ordering<Problem> {
     private static final ImmutableMap<String, Integer> SEVERITY_ORDER =
         ImmutableMap.of(
             Problem.INFO, 2,
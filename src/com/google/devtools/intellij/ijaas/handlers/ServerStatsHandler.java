@@ -0,0 +1,269 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.BaseHandler;
+import com.google.devtools.intellij.ijaas.ConnectionExecutor;
+import com.google.devtools.intellij.ijaas.EditorPool;
+import com.google.devtools.intellij.ijaas.Histogram;
+import com.google.devtools.intellij.ijaas.MethodStats;
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.google.devtools.intellij.ijaas.ServerMetrics;
+import com.google.devtools.intellij.ijaas.handlers.ServerStatsHandler.Request;
+import com.google.devtools.intellij.ijaas.handlers.ServerStatsHandler.Response;
+import com.google.gson.annotations.SerializedName;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ServerStatsHandler extends BaseHandler<Request, Response> {
+  private final ServerMetrics metrics;
+  private final EditorPool editorPool;
+  private final CompletionCache completionCache;
+  private final JavaCompleteHandler completeHandler;
+  private final DiagnosticsCache diagnosticsCache;
+  private final ShortNameCache shortNameCache;
+  private final InspectionRunner inspectionRunner;
+  private final ConnectionExecutor connectionExecutor;
+
+  public ServerStatsHandler(
+      ServerMetrics metrics,
+      EditorPool editorPool,
+      CompletionCache completionCache,
+      JavaCompleteHandler completeHandler,
+      DiagnosticsCache diagnosticsCache,
+      ShortNameCache shortNameCache,
+      InspectionRunner inspectionRunner,
+      ConnectionExecutor connectionExecutor) {
+    this.metrics = metrics;
+    this.editorPool = editorPool;
+    this.completionCache = completionCache;
+    this.completeHandler = completeHandler;
+    this.diagnosticsCache = diagnosticsCache;
+    this.shortNameCache = shortNameCache;
+    this.inspectionRunner = inspectionRunner;
+    this.connectionExecutor = connectionExecutor;
+  }
+
+  @Override
+  public Class<Request> requestClass() {
+    return Request.class;
+  }
+
+  @Override
+  public Class<Response> responseClass() {
+    return Response.class;
+  }
+
+  @Override
+  protected Response handle(Request request, RequestContext context) {
+    Response response = new Response();
+    response.editorPool.size = editorPool.getSize();
+    response.editorPool.maxSize = editorPool.getMaxSize();
+    response.editorPool.hits = editorPool.getHits();
+    response.editorPool.misses = editorPool.getMisses();
+    long total = response.editorPool.hits + response.editorPool.misses;
+    response.editorPool.hitRate = total == 0 ? 0 : (double) response.editorPool.hits / total;
+    response.completionCache.size = completionCache.getSize();
+    response.completionCache.hits = completionCache.getHits();
+    response.completionCache.misses = completionCache.getMisses();
+    response.completionEngines.put("editor", toLatency(completeHandler.getEditorTimes()));
+    response.completionEngines.put("headless", toLatency(completeHandler.getHeadlessTimes()));
+    response.diagnosticsCache.size = diagnosticsCache.getSize();
+    response.diagnosticsCache.hits = diagnosticsCache.getHits();
+    response.diagnosticsCache.misses = diagnosticsCache.getMisses();
+    response.shortNameCache.size = shortNameCache.getSize();
+    response.shortNameCache.hits = shortNameCache.getHits();
+    response.shortNameCache.misses = shortNameCache.getMisses();
+    response.connections.open = connectionExecutor.getOpenConnections();
+    response.connections.maxOpen = connectionExecutor.getMaxConnections();
+    response.connections.accepted = connectionExecutor.getAcceptedConnections();
+    response.connections.rejected = connectionExecutor.getRejectedConnections();
+    response.connections.threads = connectionExecutor.getThreadCount();
+    response.connections.virtualThreads = connectionExecutor.isVirtual();
+    response.inFlightRequests = metrics.getInFlightRequests().get();
+    for (Map.Entry<String, MethodStats> entry : metrics.getMethods().entrySet()) {
+      response.methods.put(entry.getKey(), toMethodSnapshot(entry.getValue()));
+    }
+    // The slowest first.
+    inspectionRunner.getToolTimes().entrySet().stream()
+        .sorted(
+            Comparator.comparingLong(
+                (Map.Entry<String, Histogram> entry) -> entry.getValue().getSum())
+                .reversed())
+        .forEach(entry -> response.inspections.put(entry.getKey(), toLatency(entry.getValue())));
+    return response;
+  }
+
+  private static MethodSnapshot toMethodSnapshot(MethodStats stats) {
+    MethodSnapshot snapshot = new MethodSnapshot();
+    snapshot.requests = stats.getRequests().get();
+    snapshot.errors = stats.getErrors().get();
+    snapshot.timeouts = stats.getTimeouts().get();
+    snapshot.cancellations = stats.getCancellations().get();
+    snapshot.rejections = stats.getRejections().get();
+    snapshot.queueWait = toLatency(stats.getQueueWait());
+    snapshot.edtWait = toLatency(stats.getEdtWait());
+    snapshot.readAction = toLatency(stats.getReadAction());
+    snapshot.handler = toLatency(stats.getHandler());
+    snapshot.serialization = toLatency(stats.getSerialization());
+    snapshot.total = toLatency(stats.getTotal());
+    snapshot.readActionRestarts = toDistribution(stats.getReadActionRestarts());
+    return snapshot;
+  }
+
+  private static Distribution toDistribution(Histogram histogram) {
+    Distribution distribution = new Distribution();
+    distribution.count = histogram.getCount();
+    distribution.mean = histogram.getMean();
+    distribution.p50 = histogram.getPercentile(50);
+    distribution.p95 = histogram.getPercentile(95);
+    distribution.p99 = histogram.getPercentile(99);
+    distribution.max = histogram.getMax();
+    return distribution;
+  }
+
+  private static Latency toLatency(Histogram histogram) {
+    Latency latency = new Latency();
+    latency.count = histogram.getCount();
+    latency.totalMs = histogram.getSum() / 1000.0;
+    latency.meanMs = histogram.getMean() / 1000;
+    latency.p50Ms = histogram.getPercentile(50) / 1000.0;
+    latency.p95Ms = histogram.getPercentile(95) / 1000.0;
+    latency.p99Ms = histogram.getPercentile(99) / 1000.0;
+    latency.maxMs = histogram.getMax() / 1000.0;
+    return latency;
+  }
+
+  public static class Request {}
+
+  public static class Response {
+    @SerializedName("editor_pool")
+    EditorPoolStats editorPool = new EditorPoolStats();
+
+    @SerializedName("completion_cache")
+    CacheStats completionCache = new CacheStats();
+
+    // The time to compute the completions that are not cached, by the engine.
+    @SerializedName("completion_engines")
+    Map<String, Latency> completionEngines = new LinkedHashMap<>();
+
+    @SerializedName("diagnostics_cache")
+    CacheStats diagnosticsCache = new CacheStats();
+
+    @SerializedName("short_name_cache")
+    CacheStats shortNameCache = new CacheStats();
+
+    ConnectionStats connections = new ConnectionStats();
+
+    @SerializedName("in_flight_requests")
+    int inFlightRequests;
+
+    Map<String, MethodSnapshot> methods = new TreeMap<>();
+
+    // The wall time of each inspection tool in java_src_update.
+    Map<String, Latency> inspections = new LinkedHashMap<>();
+  }
+
+  public static class EditorPoolStats {
+    int size;
+
+    @SerializedName("max_size")
+    int maxSize;
+
+    long hits;
+    long misses;
+
+    @SerializedName("hit_rate")
+    double hitRate;
+  }
+
+  public static class CacheStats {
+    long size;
+    long hits;
+    long misses;
+  }
+
+  public static class ConnectionStats {
+    int open;
+
+    @SerializedName("max_open")
+    int maxOpen;
+
+    long accepted;
+    long rejected;
+    int threads;
+
+    @SerializedName("virtual_threads")
+    boolean virtualThreads;
+  }
+
+  public static class MethodSnapshot {
+    long requests;
+    long errors;
+    long timeouts;
+    long cancellations;
+    long rejections;
+
+    @SerializedName("queue_wait")
+    Latency queueWait;
+
+    @SerializedName("edt_wait")
+    Latency edtWait;
+
+    @SerializedName("read_action")
+    Latency readAction;
+
+    Latency handler;
+    Latency serialization;
+    Latency total;
+
+    @SerializedName("read_action_restarts")
+    Distribution readActionRestarts;
+  }
+
+  // Counts, such as the restarts per request.
+  public static class Distribution {
+    long count;
+    double mean;
+    long p50;
+    long p95;
+    long p99;
+    long max;
+  }
+
+  // Durations in milliseconds.
+  public static class Latency {
+    long count;
+
+    @SerializedName("total_ms")
+    double totalMs;
+
+    @SerializedName("mean_ms")
+    double meanMs;
+
+    @SerializedName("p50_ms")
+    double p50Ms;
+
+    @SerializedName("p95_ms")
+    double p95Ms;
+
+    @SerializedName("p99_ms")
+    double p99Ms;
+
+    @SerializedName("max_ms")
+    double maxMs;
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiShortNamesCache;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Caches the classes of each short name outside the default package in a project. The classes are
+// looked up in the stub index over the whole project, and the callers filter them by the scope,
+// accessibility and context of their reference. The cache of a project is dropped on any PSI or
+// root change.
+public class ShortNameCache {
+  private static final Key<CachedValue<ConcurrentHashMap<String, List<PsiClass>>>> KEY =
+      Key.create("ijaas.shortNameCache");
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  // Called in a read action.
+  List<PsiClass> getClasses(Project project, String name) {
+    ConcurrentHashMap<String, List<PsiClass>> classes =
+        CachedValuesManager.getManager(project)
+            .getCachedValue(
+                project,
+                KEY,
+                () ->
+                    CachedValueProvider.Result.create(
+                        new ConcurrentHashMap<>(),
+                        PsiModificationTracker.MODIFICATION_COUNT,
+                        ProjectRootModificationTracker.getInstance(project)),
+                false);
+    List<PsiClass> cached = classes.get(name);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached;
+    }
+    misses.incrementAndGet();
+    List<PsiClass> found = new ArrayList<>();
+    for (PsiClass psiClass :
+        PsiShortNamesCache.getInstance(project)
+            .getClassesByName(name, GlobalSearchScope.allScope(project))) {
+      // The classes in the default package cannot be imported.
+      if (psiClass.getQualifiedName() != null
+          && !StringUtil.isEmpty(PsiUtil.getPackageName(psiClass))) {
+        found.add(psiClass);
+      }
+    }
+    List<PsiClass> previous = classes.putIfAbsent(name, found);
+    return previous != null ? previous : found;
+  }
+
+  public long getSize() {
+    long size = 0;
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      CachedValue<ConcurrentHashMap<String, List<PsiClass>>> cachedValue = project.getUserData(KEY);
+      Supplier<ConcurrentHashMap<String, List<PsiClass>>> value =
+          cachedValue != null ? cachedValue.getUpToDateOrNull() : null;
+      if (value != null) {
+        size += value.get().size();
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas.handlers;
+
+import com.google.devtools.intellij.ijaas.RequestContext;
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Runs the completion, the import candidates and the inspections on a small in-memory file once a
+// project is indexed. The first real requests then do not pay for loading the classes and for the
+// JIT, which often made them time out.
+public class Warmup {
+  private static final Logger LOG = Logger.getInstance(Warmup.class);
+  private static final String FILE_NAME = "IjaasWarmup.java";
+  private static final String TEXT =
+      "public class IjaasWarmup {\n"
+          + "  Map<String, String> map;\n"
+          + "\n"
+          + "  void run() {\n"
+          + "    java.util.List<String> list = new java.util.ArrayList<>();\n"
+          + "    list.\n"
+          + "  }\n"
+          + "}\n";
+  private static final int COMPLETION_OFFSET = TEXT.indexOf("list.\n") + "list.".length();
+
+  private final JavaCompleteHandler completeHandler;
+  private final JavaGetImportCandidatesHandler importCandidatesHandler;
+  private final InspectionRunner inspectionRunner;
+  private final Supplier<RequestContext> contextFactory;
+
+  public Warmup(
+      JavaCompleteHandler completeHandler,
+      JavaGetImportCandidatesHandler importCandidatesHandler,
+      InspectionRunner inspectionRunner,
+      Supplier<RequestContext> contextFactory) {
+    this.completeHandler = completeHandler;
+    this.importCandidatesHandler = importCandidatesHandler;
+    this.inspectionRunner = inspectionRunner;
+    this.contextFactory = contextFactory;
+  }
+
+  public void runWhenSmart(Project project) {
+    DumbService.getInstance(project)
+        .runWhenSmart(
+            () ->
+                ApplicationManager.getApplication()
+                    .executeOnPooledThread(
+                        () -> {
+                          if (!project.isDisposed()) {
+                            run(project);
+                          }
+                        }));
+  }
+
+  private void run(Project project) {
+    RequestContext context = contextFactory.get();
+    long startNanos = System.nanoTime();
+    // The path is only used to find the project. The file does not need to exist.
+    String file = project.getBasePath() + "/" + FILE_NAME;
+    try {
+      JavaCompleteHandler.Request completeRequest = new JavaCompleteHandler.Request();
+      completeRequest.file = file;
+      completeRequest.text = TEXT;
+      completeRequest.offset = COMPLETION_OFFSET;
+      completeRequest.warmup = true;
+      completeHandler.handleRequest(completeRequest, context);
+
+      JavaGetImportCandidatesHandler.Request importRequest =
+          new JavaGetImportCandidatesHandler.Request();
+      importRequest.file = file;
+      importRequest.text = TEXT;
+      importCandidatesHandler.handleRequest(importRequest, context);
+
+      Ref<PsiFile> psiFileRef = new Ref<>();
+      ApplicationManager.getApplication()
+          .runReadAction(
+              () ->
+                  psiFileRef.set(
+                      PsiFileFactory.getInstance(project)
+                          .createFileFromText(FILE_NAME, JavaLanguage.INSTANCE, TEXT)));
+      inspectionRunner.run(inspectionRunner.newSession(project), psiFileRef.get(), context);
+    } catch (RuntimeException e) {
+      // The real requests still work. They are just slow for the first time.
+      LOG.info("Cannot warm up for " + project.getName(), e);
+      return;
+    }
+    long nanos = System.nanoTime() - startNanos;
+    context.getStats().getTotal().recordNanos(nanos);
+    LOG.info(
+        String.format(
+            "Warmed up for %s in %d ms", project.getName(), TimeUnit.NANOSECONDS.toMillis(nanos)));
+  }
+}
@@ -0,0 +1,303 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.intellij.ijaas;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+// Drives a running server with the requests of a trace that TraceRecorder wrote, and reports the
+// latency percentiles of each method. Run it with e.g.
+//
+//   gradle replay -Preplay.args="--trace=/tmp/ijaas/trace.jsonl --concurrency=4 --rate=50"
+//
+// Each of the --concurrency connections sends one request at a time. The requests for a file go
+// to the same connection in the order of the trace, so that java_did_open and java_did_change are
+// replayed before the requests that depend on them. With --rate, the requests are sent at that
+// many per second in total, and the latency is measured from when each request was due, so that
+// a slow server is not hidden by sending less.
+public class Replay {
+  private static final Gson GSON = new Gson();
+  // The ids of the original connection are not valid on the new ones.
+  private static final ImmutableSet<String> DEFAULT_SKIPPED_METHODS = ImmutableSet.of("$/cancel");
+
+  private final Map<String, MethodResult> results = new ConcurrentHashMap<>();
+  @Nullable private volatile Throwable failure;
+
+  public static void main(String[] args) throws Exception {
+    Options options = Options.parse(args);
+    List<JsonObject> requests = new ArrayList<>();
+    for (String trace : options.traces) {
+      requests.addAll(readTrace(trace, options.skippedMethods));
+    }
+    System.exit(new Replay().run(options, requests) ? 0 : 1);
+  }
+
+  private boolean run(Options options, List<JsonObject> requests) throws InterruptedException {
+    List<BlockingQueue<Task>> queues = new ArrayList<>();
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < options.concurrency; i++) {
+      BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+      Thread worker = new Thread(() -> work(options, queue), "replay-" + i);
+      queues.add(queue);
+      workers.add(worker);
+      worker.start();
+    }
+
+    RateLimiter rateLimiter = options.rate > 0 ? RateLimiter.create(options.rate) : null;
+    long startNanos = System.nanoTime();
+    int next = 0;
+    for (JsonObject request : requests) {
+      if (failure != null) {
+        break;
+      }
+      long dueNanos = 0;
+      if (rateLimiter != null) {
+        rateLimiter.acquire();
+        dueNanos = System.nanoTime();
+      }
+      String file = getFile(request);
+      int index =
+          file != null
+              ? Math.floorMod(file.hashCode(), queues.size())
+              : next++ % queues.size();
+      queues.get(index).put(new Task(request, dueNanos));
+    }
+    for (BlockingQueue<Task> queue : queues) {
+      queue.put(Task.END);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    report(elapsedNanos);
+    if (failure != null) {
+      System.err.println("Replay failed: " + failure);
+      return false;
+    }
+    return true;
+  }
+
+  private void work(Options options, BlockingQueue<Task> queue) {
+    try (Socket socket = new Socket(options.host, options.port)) {
+      socket.setTcpNoDelay(true);
+      Writer writer =
+          new BufferedWriter(
+              new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      JsonReader reader =
+          new JsonReader(
+              new BufferedReader(
+                  new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+      reader.setLenient(true);
+      long id = 0;
+      while (true) {
+        Task task = queue.take();
+        if (task == Task.END) {
+          return;
+        }
+        id++;
+        String method = task.request.get("method").getAsString();
+        JsonObject body = new JsonObject();
+        body.addProperty("method", method);
+        body.add("params", task.request.get("params"));
+        JsonArray message = new JsonArray();
+        message.add(id);
+        message.add(body);
+
+        long sendNanos = System.nanoTime();
+        writer.write(GSON.toJson(message));
+        writer.write('\n');
+        writer.flush();
+        JsonObject response = readResponse(reader, id);
+        long endNanos = System.nanoTime();
+
+        MethodResult result = results.computeIfAbsent(method, m -> new MethodResult());
+        result.latency.recordNanos(endNanos - (task.dueNanos != 0 ? task.dueNanos : sendNanos));
+        if (response.has("error")) {
+          result.errors.incrementAndGet();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Skips the notifications, e.g. the partial results, which have the id 0.
+  private static JsonObject readResponse(JsonReader reader, long id) throws IOException {
+    while (true) {
+      JsonArray message = GSON.fromJson(reader, JsonArray.class);
+      if (message == null) {
+        throw new IOException("The server closed the connection");
+      }
+      if (message.size() == 2 && message.get(0).getAsLong() == id) {
+        return message.get(1).getAsJsonObject();
+      }
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    System.out.printf(
+        "%-32s %8s %8s %10s %10s %10s %10s%n",
+        "method", "count", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms");
+    long total = 0;
+    for (Map.Entry<String, MethodResult> entry : new TreeMap<>(results).entrySet()) {
+      Histogram latency = entry.getValue().latency;
+      total += latency.getCount();
+      System.out.printf(
+          "%-32s %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+          entry.getKey(),
+          latency.getCount(),
+          entry.getValue().errors.get(),
+          latency.getPercentile(50) / 1000.0,
+          latency.getPercentile(95) / 1000.0,
+          latency.getPercentile(99) / 1000.0,
+          latency.getMax() / 1000.0);
+    }
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf(
+        "%d requests in %.1f s (%.1f requests/s)%n", total, seconds, total / seconds);
+  }
+
+  private static List<JsonObject> readTrace(String trace, Set<String> skippedMethods)
+      throws IOException {
+    List<JsonObject> requests = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(Paths.get(trace), StandardCharsets.UTF_8)) {
+      lineNumber++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      JsonObject entry;
+      try {
+        entry = JsonParser.parseString(line).getAsJsonObject();
+      } catch (JsonParseException | IllegalStateException e) {
+        throw new IOException(trace + ":" + lineNumber + ": Not a trace entry", e);
+      }
+      JsonElement method = entry.get("method");
+      if (method != null
+          && method.isJsonPrimitive()
+          && !skippedMethods.contains(method.getAsString())) {
+        requests.add(entry);
+      }
+    }
+    return requests;
+  }
+
+  @Nullable
+  private static String getFile(JsonObject request) {
+    JsonElement params = request.get("params");
+    if (params == null || !params.isJsonObject()) {
+      return null;
+    }
+    JsonElement file = params.getAsJsonObject().get("file");
+    return file != null && file.isJsonPrimitive() ? file.getAsString() : null;
+  }
+
+  private static class Task {
+    static final Task END = new Task(new JsonObject(), 0);
+
+    final JsonObject request;
+    // When the request was due with --rate, or 0.
+    final long dueNanos;
+
+    Task(JsonObject request, long dueNanos) {
+      this.request = request;
+      this.dueNanos = dueNanos;
+    }
+  }
+
+  private static class MethodResult {
+    final Histogram latency = new Histogram();
+    final AtomicLong errors = new AtomicLong();
+  }
+
+  private static class Options {
+    final List<String> traces = new ArrayList<>();
+    String host = "localhost";
+    int port = 5800;
+    int concurrency = 1;
+    // Requests per second in total, or 0 for as fast as the server answers.
+    double rate;
+    Set<String> skippedMethods = DEFAULT_SKIPPED_METHODS;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (String arg : args) {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0) {
+          throw new IllegalArgumentException("Expected --name=value: " + arg);
+        }
+        String name = arg.substring(2, equals);
+        String value = arg.substring(equals + 1);
+        switch (name) {
+          case "trace":
+            options.traces.add(value);
+            break;
+          case "host":
+            options.host = value;
+            break;
+          case "port":
+            options.port = Integer.parseInt(value);
+            break;
+          case "concurrency":
+            options.concurrency = Math.max(1, Integer.parseInt(value));
+            break;
+          case "rate":
+            options.rate = Double.parseDouble(value);
+            break;
+          case "skip":
+            options.skippedMethods =
+                ImmutableSet.copyOf(Splitter.on(',').omitEmptyStrings().split(value));
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      if (options.traces.isEmpty()) {
+        throw new IllegalArgumentException("--trace is required");
+      }
+      return options;
+    }
+  }
+}
@@ -14,10 +14,23 @@
 let s:cpo_save = &cpo
 set cpo&vim
 
-if exists("$IJAAS_PORT")
-  let s:ch = ch_open('localhost:' . $IJAAS_PORT)
+" Called with the messages that are not responses, i.e. the notifications from the server.
+function! s:on_message(channel, msg) abort
+  if type(a:msg) != type({})
+    return
+  endif
+  if get(a:msg, 'method', '') ==# 'diagnostics'
+    call s:set_diagnostics(a:msg['params'])
+  endif
+endfunction
+
+if exists("$IJAAS_SOCKET")
+  " Needs a Vim that supports Unix domain sockets in ch_open().
+  let s:ch = ch_open('unix:' . $IJAAS_SOCKET, {'callback': function('s:on_message')})
+elseif exists("$IJAAS_PORT")
+  let s:ch = ch_open('localhost:' . $IJAAS_PORT, {'callback': function('s:on_message')})
 else
-  let s:ch = ch_open('localhost:5800')
+  let s:ch = ch_open('localhost:5800', {'callback': function('s:on_message')})
 endif
 
 function! ijaas#call(method, params) abort
@@ -33,6 +46,14 @@ function! ijaas#call(method, params) abort
     throw 'ijaas: Timeout'
   endif
   if has_key(l:response, 'error') || has_key(l:response, 'cause')
+    if get(l:response, 'error', '') =~# '^\(superseded\|cancelled\|server busy\)$'
+      " A newer request took over, or the server asks to retry later. Not an error to show.
+      throw 'ijaas: ' . l:response['error']
+    endif
+    if get(l:response, 'error', '') =~# '^The document \(is not opened\|version mismatch\)'
+      " The server lost track of the synced document. The caller reopens it.
+      throw 'ijaas: out of sync'
+    endif
     if has_key(l:response, 'error')
       echo l:response['error']
     endif
@@ -46,6 +67,63 @@ function! ijaas#call(method, params) abort
   return l:response['result']
 endfunction
 
+function! ijaas#notify(method, params) abort
+  let l:ci = ch_info(s:ch)
+  if type(l:ci) != type({}) || l:ci.status != 'open'
+    throw 'ijaas: Not connected'
+  endif
+  call ch_sendexpr(s:ch, {'method': a:method, 'params': a:params})
+endfunction
+
+function! ijaas#did_open() abort
+  if exists('b:ijaas_listener')
+    call listener_remove(b:ijaas_listener)
+    unlet b:ijaas_listener
+  endif
+  let b:ijaas_synced = 0
+  let b:ijaas_version = 0
+  try
+    call ijaas#notify('java_did_open', {
+          \ 'file': expand('%:p'),
+          \ 'text': join(getline(1, '$'), "\n"),
+          \ 'version': b:ijaas_version,
+          \ })
+  catch /^ijaas:/
+    return
+  endtry
+  let b:ijaas_listener = listener_add(function('s:on_change'))
+  let b:ijaas_synced = 1
+endfunction
+
+function! ijaas#did_close(file) abort
+  try
+    call ijaas#notify('java_did_close', {'file': a:file})
+  catch /^ijaas:/
+  endtry
+endfunction
+
+function! s:on_change(bufnr, start, end, added, changes) abort
+  if !getbufvar(a:bufnr, 'ijaas_synced', 0)
+    return
+  endif
+  let l:version = getbufvar(a:bufnr, 'ijaas_version') + 1
+  call setbufvar(a:bufnr, 'ijaas_version', l:version)
+  " Send the lines [start, end) before the change replaced with the current lines.
+  try
+    call ijaas#notify('java_did_change', {
+          \ 'file': fnamemodify(bufname(a:bufnr), ':p'),
+          \ 'version': l:version,
+          \ 'changes': [{
+          \   'start': a:start - 1,
+          \   'end': a:end - 1,
+          \   'lines': getbufline(a:bufnr, a:start, a:end - 1 + a:added),
+          \ }],
+          \ })
+  catch /^ijaas:/
+    call setbufvar(a:bufnr, 'ijaas_synced', 0)
+  endtry
+endfunction
+
 function! ijaas#complete(findstart, base) abort
   let l:col = col('.') - 1
   let l:line = getline('.')
@@ -56,44 +134,117 @@ function! ijaas#complete(findstart, base) abort
     return l:col
   endif
 
-  let l:lines = getline(1, '$')
-  let l:pos = getcurpos()
-  let l:pos[2] = l:col
-  if l:pos[1] == 1 " lnum
-    let l:text = join(l:lines, "\n")
-    let l:offset = l:pos[2] - 1 " col
-  else
-    " Join the lines from beginning to (the cursor line - 1).
-    let l:text = join(l:lines[0:l:pos[1]-2], "\n")
-    let l:offset = len(l:text) + 1 + l:pos[2] " \n + col
-    " Join the rest of the lines.
-    let l:text .= "\n" . join(l:lines[l:pos[1]-1:], "\n")
+  if get(b:, 'ijaas_synced', 0)
+    call listener_flush()
+    try
+      return s:completions(ijaas#call('java_complete', extend({
+            \ 'file': expand('%:p'),
+            \ 'version': b:ijaas_version,
+            \ 'offset': s:offset(getline(1, line('.')), line('.'), l:col),
+            \ 'prefix': a:base,
+            \ }, s:complete_options())))
+    catch /^ijaas: \(superseded\|cancelled\|server busy\)$/
+      return []
+    catch /^ijaas: out of sync$/
+      " Reopen the document and send the whole text this time.
+      call ijaas#did_open()
+    endtry
   endif
 
-  let ret = ijaas#call('java_complete', {
+  let l:lines = getline(1, '$')
+  return s:completions(ijaas#call('java_complete', extend({
         \ 'file': expand('%:p'),
-        \ 'text': l:text,
-        \ 'offset': l:offset,
-        \ })['completions']
-  return filter(ret, 'stridx(v:val["word"], a:base) == 0')
+        \ 'text': join(l:lines, "\n"),
+        \ 'offset': s:offset(l:lines, line('.'), l:col),
+        \ 'prefix': a:base,
+        \ }, s:complete_options())))
+endfunction
+
+" The offset of the byte column col on line lnum in the server's text, i.e. the characters of the
+" lines joined with "\n" regardless of 'fileformat'.
+function! s:offset(lines, lnum, col) abort
+  let l:before = a:lnum > 1 ? a:lines[: a:lnum - 2] : []
+  call add(l:before, strpart(a:lines[a:lnum - 1], 0, a:col))
+  return strchars(join(l:before, "\n"))
+endfunction
+
+function! s:complete_options() abort
+  let l:options = {
+        \ 'limit': get(g:, 'ijaas_complete_limit', 0),
+        \ 'headless': get(g:, 'ijaas_complete_headless', v:false),
+        \ }
+  " Otherwise the server default is used.
+  if exists('g:ijaas_complete_ranking')
+    let l:options['ranking'] = g:ijaas_complete_ranking
+  endif
+  return l:options
+endfunction
+
+function! s:completions(result) abort
+  " Mark the items ranked by relevance, so that ijaas#complete_done() reports only the ones that
+  " the ranking learns from.
+  let l:words = a:result['completions']
+  if get(a:result, 'ranking', '') ==# 'relevance'
+    call map(l:words, {_, v -> extend(v, {'user_data': 'ijaas'})})
+  endif
+  if get(a:result, 'incomplete', 0)
+    " The server truncated the list. Ask again as the user types more.
+    return {'words': l:words, 'refresh': 'always'}
+  endif
+  return l:words
+endfunction
+
+" Tells the server which completion the user picked, for the relevance ranking.
+function! ijaas#complete_done() abort
+  if get(v:completed_item, 'user_data', '') !=# 'ijaas'
+    return
+  endif
+  try
+    call ijaas#notify('java_completion_accepted', {
+          \ 'file': expand('%:p'),
+          \ 'word': v:completed_item['word'],
+          \ })
+  catch /^ijaas:/
+  endtry
 endfunction
 
 function! ijaas#buf_write_post() abort
-  let l:result = ijaas#call('java_src_update', {'file': expand('%:p')})
+  " The problems are pushed with a diagnostics notification when they are ready.
+  let l:params = {'file': expand('%:p')}
+  if has_key(b:, 'ijaas_result_id')
+    let l:params['previous_result_id'] = b:ijaas_result_id
+  endif
+  try
+    call ijaas#notify('java_src_changed', l:params)
+  catch /^ijaas:/
+  endtry
+endfunction
 
-  if !has_key(l:result, 'problems') || len(l:result['problems']) == 0
-    call ijaas#set_problems([])
+function! s:set_diagnostics(params) abort
+  let l:bufnr = bufnr(a:params['file'])
+  if l:bufnr == -1
+    return
+  endif
+  if has_key(a:params, 'added')
+    " Only the difference from the previous result is sent.
+    let l:removed = a:params['removed']
+    let l:problems = filter(copy(getbufvar(l:bufnr, 'ijaas_problems', [])),
+          \ {_, p -> index(l:removed, p) < 0}) + a:params['added']
   else
-    call ijaas#set_problems(l:result['problems'])
-  end
+    let l:problems = get(a:params, 'problems', [])
+  endif
+  call setbufvar(l:bufnr, 'ijaas_result_id', a:params['result_id'])
+  " set_problems adds the filename, so keep the problems as the server sent.
+  call setbufvar(l:bufnr, 'ijaas_problems', deepcopy(l:problems))
+  call ijaas#set_problems(l:problems, fnamemodify(bufname(l:bufnr), ':p'))
 endfunction
 
 sign define IjaasErrorSign text=>> texthl=Error
 sign define IjaasWarningSign text=>> texthl=Todo
 
-function! ijaas#set_problems(problems) abort
-  let l:filename = expand('%:p')
-  sign unplace *
+function! ijaas#set_problems(problems, ...) abort
+  let l:filename = a:0 > 0 ? a:1 : expand('%:p')
+  exec 'sign unplace * file=' . l:filename
   let l:id = 1
   for l:problem in a:problems
     let l:problem['filename'] = l:filename
@@ -109,10 +260,20 @@ function! ijaas#set_problems(problems) abort
 endfunction
 
 function! ijaas#organize_import() abort
-  let l:response = ijaas#call('java_get_import_candidates', {
-        \ 'file': expand('%:p'),
-        \ 'text': join(getline(1, '$'), "\n"),
-        \ })
+  let l:response = {}
+  if get(b:, 'ijaas_synced', 0)
+    call listener_flush()
+    try
+      let l:response = ijaas#call('java_get_import_candidates',
+            \ {'file': expand('%:p'), 'version': b:ijaas_version})
+    catch /^ijaas: out of sync$/
+      call ijaas#did_open()
+    endtry
+  endif
+  if empty(l:response)
+    let l:response = ijaas#call('java_get_import_candidates',
+          \ {'file': expand('%:p'), 'text': join(getline(1, '$'), "\n")})
+  endif
 
   let l:choices = l:response['choices']
   if empty(l:choices)
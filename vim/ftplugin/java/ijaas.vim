@@ -19,5 +19,20 @@ if !get(g:, 'ijaas_disable_buf_write_post', 0)
   augroup END
 endif
 
+if !get(g:, 'ijaas_disable_document_sync', 0) && exists('*listener_add')
+  augroup IjaasDocumentSync
+    au! * <buffer>
+    au BufUnload <buffer> call ijaas#did_close(expand('<afile>:p'))
+  augroup END
+  call ijaas#did_open()
+endif
+
+" The accepted completions are used by the relevance ranking. Only the completions that the
+" server ranked by relevance are reported, whether it is chosen here or by the server default.
+augroup IjaasCompleteDone
+  au! * <buffer>
+  au CompleteDone <buffer> call ijaas#complete_done()
+augroup END
+
 setlocal omnifunc=ijaas#complete
 command! -buffer OrganizeImport call ijaas#organize_import()